@@ -0,0 +1,78 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Card lookups against BIN tables of growing size. With the binary search the time per lookup should grow with
+ * log(bins), i.e. by a roughly constant step for every tenfold increase. {@code findCached} repeats the same cards
+ * through a {@link CardLookupCache}, as real traffic does, so after the first pass it should not depend on bins.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BinLookupBenchmark {
+
+    private static final int CARDS = 4096;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int bins;
+
+    private BinRangeIndex index;
+    private CardLookupCache cache;
+    private final String[] cards = new String[CARDS];
+    private final Dictionaries dictionaries = new Dictionaries();
+
+    @Setup
+    public void setUp() {
+        long width = 8_000_000_000L / bins;
+        List<BinMapping> mappings = new ArrayList<>(bins);
+        for (int i = 0; i < bins; i++) {
+            long from = 1_000_000_000L + i * width;
+            mappings.add(new BinMapping("Bank " + i, from, from + width - 1, Dictionaries.DEBIT_CARD,
+                    dictionaries.getCountries().intern("EE")));
+        }
+        index = BinRangeIndex.build(mappings);
+
+        Random random = new Random(42);
+        for (int i = 0; i < CARDS; i++) {
+            cards[i] = (1_000_000_000L + (long) (random.nextDouble() * 8_000_000_000L)) + "123456";
+        }
+        cache = new CardLookupCache(index);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CARDS)
+    public void find(Blackhole blackhole) {
+        for (String card : cards) {
+            blackhole.consume(index.find(card));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CARDS)
+    public void findCached(Blackhole blackhole) {
+        for (String card : cards) {
+            blackhole.consume(cache.find(card));
+        }
+    }
+}
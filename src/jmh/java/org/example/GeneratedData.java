@@ -0,0 +1,56 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Input files shared by the stage benchmarks, generated once per trial into a temporary directory.
+ */
+@State(Scope.Benchmark)
+public class GeneratedData {
+
+    @Param({"100000"})
+    public int users;
+
+    @Param({"10000"})
+    public int bins;
+
+    @Param({"1000000"})
+    public long transactions;
+
+    @Param({"0.1", "0.5"})
+    public double failureRate;
+
+    Path directory;
+    Path usersPath;
+    Path binsPath;
+    Path transactionsPath;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        directory = Files.createTempDirectory("transaction-benchmark");
+        SyntheticDataGenerator.generate(directory, users, bins, transactions, failureRate, 42);
+        usersPath = directory.resolve("users.csv");
+        binsPath = directory.resolve("bins.csv");
+        transactionsPath = directory.resolve("transactions.csv");
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
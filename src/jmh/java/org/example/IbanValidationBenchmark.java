@@ -0,0 +1,47 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IbanValidationBenchmark {
+
+    private static final int IBANS = 4096;
+
+    private final String[] ibans = new String[IBANS];
+
+    @Setup
+    public void setUp() {
+        SyntheticDataGenerator generator = new SyntheticDataGenerator(IBANS, 80, 0, 42);
+        for (int i = 0; i < IBANS; i++) {
+            String iban = generator.iban(i);
+            // Every fourth IBAN fails the checksum so both outcomes are measured
+            ibans[i] = i % 4 == 0 ? iban.substring(0, iban.length() - 1) + (iban.endsWith("0") ? "1" : "0") : iban;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IBANS)
+    public void isValid(Blackhole blackhole) {
+        for (String iban : ibans) {
+            blackhole.consume(IbanValidator.isValid(iban));
+        }
+    }
+}
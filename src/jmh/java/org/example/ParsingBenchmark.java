@@ -0,0 +1,37 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParsingBenchmark {
+
+    // Every call reads into new dictionaries, as a run does
+
+    @Benchmark
+    public UserRegistry readUsers(GeneratedData data) {
+        return TransactionProcessor.readUsers(data.usersPath, new Dictionaries());
+    }
+
+    @Benchmark
+    public BinRangeIndex readBinMappings(GeneratedData data) {
+        return TransactionProcessor.readBinMappings(data.binsPath, new Dictionaries());
+    }
+
+    @Benchmark
+    public List<Transaction> readTransactions(GeneratedData data) {
+        return TransactionProcessor.readTransactions(data.transactionsPath, new Dictionaries());
+    }
+}
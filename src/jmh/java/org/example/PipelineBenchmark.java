@@ -0,0 +1,71 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validation of parsed input and writing of the results, each measured without the other stages.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+
+    private final Dictionaries dictionaries = new Dictionaries();
+    private UserRegistry users;
+    private BinRangeIndex binIndex;
+    private List<Transaction> transactions;
+    private List<Event> events;
+    private Path balancesPath;
+    private Path eventsPath;
+
+    @Setup(Level.Trial)
+    public void parse(GeneratedData data) throws IOException {
+        binIndex = TransactionProcessor.readBinMappings(data.binsPath, dictionaries);
+        transactions = TransactionProcessor.readTransactions(data.transactionsPath, dictionaries);
+        balancesPath = Files.createTempFile(data.directory, "balances", ".csv");
+        eventsPath = Files.createTempFile(data.directory, "events", ".csv");
+        events = TransactionProcessor.processTransactions(TransactionProcessor.readUsers(data.usersPath, dictionaries),
+                transactions, binIndex);
+    }
+
+    // Processing changes balances, so every run starts from freshly read users; they keep their ids, so the
+    // transactions stay valid for them
+    @Setup(Level.Invocation)
+    public void resetUsers(GeneratedData data) {
+        users = TransactionProcessor.readUsers(data.usersPath, dictionaries);
+    }
+
+    @Benchmark
+    public List<Event> processTransactions() {
+        return TransactionProcessor.processTransactions(users, transactions, binIndex);
+    }
+
+    @Benchmark
+    public void writeEvents() throws IOException {
+        TransactionProcessor.writeEvents(eventsPath, events);
+    }
+
+    @Benchmark
+    public void writeBalances() throws IOException {
+        TransactionProcessor.writeBalances(balancesPath, users);
+    }
+}
@@ -0,0 +1,439 @@
+package org.example;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Writes seeded users.csv, bins.csv and transactions.csv files of any size for benchmarks and the
+ * {@link ThroughputRegressionSuite}.
+ * <p>
+ * Users, their cards and their IBANs are derived from the user index and the same seed always gives the same files.
+ * Each transaction is built to be declined by exactly one {@link ValidationRule}, with the share given for that rule
+ * in {@code declineRates}, or else to be approved. That takes following what the engine will do: the generator keeps
+ * every user's balance, who has deposited and the last user of each country to claim a card, a {@code long} and a
+ * bit per user, and nothing per transaction. Two users in every hundred are set aside, one frozen and one with an
+ * empty balance, and only ever used for the transactions meant to be declined for that.
+ * <p>
+ * {@link #generate} also writes expected-balances.csv, the balances.csv the processor should write, and expected.csv,
+ * the number of events each status and message should get.
+ */
+final class SyntheticDataGenerator {
+
+    private static final String[] COUNTRIES = {"EE", "LV", "LT", "FI", "SE", "DE", "PL", "GB"};
+    private static final long FIRST_BIN = 1_000_000_000L;
+    private static final long BIN_SPACE = 8_000_000_000L;
+    private static final int BUFFER_SIZE = 1 << 16;
+    // Users set aside in every hundred
+    private static final int FROZEN_USER = 98;
+    private static final int EMPTY_USER = 99;
+    // Limits of every user, in minor units
+    private static final long DEPOSIT_MIN = 1_000;
+    private static final long DEPOSIT_MAX = 500_000;
+    private static final long WITHDRAW_MIN = 1_000;
+    private static final long WITHDRAW_MAX = 200_000;
+    private static final ValidationRule[] RULES = ValidationRule.values();
+
+    private final int users;
+    private final int bins;
+    private final double[] declineRates = new double[RULES.length];
+    private final long seed;
+
+    SyntheticDataGenerator(int users, int bins, double failureRate, long seed) {
+        this(users, bins, evenly(failureRate), seed);
+    }
+
+    SyntheticDataGenerator(int users, int bins, Map<ValidationRule, Double> declineRates, long seed) {
+        if (bins < COUNTRIES.length * 10) {
+            throw new IllegalArgumentException("Need at least " + COUNTRIES.length * 10 + " bins");
+        }
+        double total = 0;
+        for (Map.Entry<ValidationRule, Double> rate : declineRates.entrySet()) {
+            if (rate.getValue() < 0) {
+                throw new IllegalArgumentException("Negative rate for " + rate.getKey() + ": " + rate.getValue());
+            }
+            this.declineRates[rate.getKey().ordinal()] = rate.getValue();
+            total += rate.getValue();
+        }
+        if (total > 1 + 1e-9) {
+            throw new IllegalArgumentException("Decline rates add up to more than 1: " + total);
+        }
+        if (users < 100 && total > 0) {
+            throw new IllegalArgumentException("Need at least 100 users for declined transactions");
+        }
+        this.users = users;
+        this.bins = bins;
+        this.seed = seed;
+    }
+
+    /**
+     * {@code failureRate} split evenly over every decline reason.
+     */
+    static Map<ValidationRule, Double> evenly(double failureRate) {
+        Map<ValidationRule, Double> rates = new EnumMap<>(ValidationRule.class);
+        for (ValidationRule rule : RULES) {
+            rates.put(rule, failureRate / RULES.length);
+        }
+        return rates;
+    }
+
+    static Path generate(Path directory, int users, int bins, long transactions, double failureRate, long seed)
+            throws IOException {
+        return generate(directory, users, bins, transactions, evenly(failureRate), seed);
+    }
+
+    static Path generate(Path directory, int users, int bins, long transactions,
+                         Map<ValidationRule, Double> declineRates, long seed) throws IOException {
+        Files.createDirectories(directory);
+        SyntheticDataGenerator generator = new SyntheticDataGenerator(users, bins, declineRates, seed);
+        generator.writeUsers(directory.resolve("users.csv"));
+        generator.writeBins(directory.resolve("bins.csv"));
+        long[] expected = generator.writeTransactions(directory.resolve("transactions.csv"),
+                directory.resolve("expected-balances.csv"), transactions);
+        writeExpected(directory.resolve("expected.csv"), expected);
+        return directory;
+    }
+
+    /**
+     * Usage: {@code SyntheticDataGenerator [--users=<n>] [--bins=<n>] [--transactions=<n>] [--seed=<n>]
+     * [--decline-rate=<share>] [--rate.<VALIDATION_RULE>=<share>...] <directory>}. {@code --decline-rate} is split
+     * evenly over the reasons not given their own rate.
+     */
+    public static void main(String[] args) throws IOException {
+        int users = 100_000;
+        int bins = 10_000;
+        long transactions = 1_000_000;
+        long seed = 42;
+        double declineRate = 0.5;
+        Map<ValidationRule, Double> rates = new EnumMap<>(ValidationRule.class);
+        Path directory = null;
+        for (String arg : args) {
+            if (arg.startsWith("--users=")) {
+                users = Integer.parseInt(arg.substring("--users=".length()));
+            } else if (arg.startsWith("--bins=")) {
+                bins = Integer.parseInt(arg.substring("--bins=".length()));
+            } else if (arg.startsWith("--transactions=")) {
+                transactions = Long.parseLong(arg.substring("--transactions=".length()));
+            } else if (arg.startsWith("--seed=")) {
+                seed = Long.parseLong(arg.substring("--seed=".length()));
+            } else if (arg.startsWith("--decline-rate=")) {
+                declineRate = Double.parseDouble(arg.substring("--decline-rate=".length()));
+            } else if (arg.startsWith("--rate.")) {
+                int separator = arg.indexOf('=');
+                rates.put(ValidationRule.valueOf(arg.substring("--rate.".length(), separator)),
+                        Double.parseDouble(arg.substring(separator + 1)));
+            } else {
+                directory = Paths.get(arg);
+            }
+        }
+        if (directory == null) {
+            System.err.println("Usage: SyntheticDataGenerator [--users=<n>] [--bins=<n>] [--transactions=<n>]"
+                    + " [--seed=<n>] [--decline-rate=<share>] [--rate.<VALIDATION_RULE>=<share>...] <directory>");
+            System.exit(2);
+        }
+        withDefaultRate(rates, declineRate);
+
+        long startTime = System.currentTimeMillis();
+        generate(directory, users, bins, transactions, rates, seed);
+        System.out.println("Generated " + transactions + " transactions in " + directory + " in "
+                + (System.currentTimeMillis() - startTime) + " milliseconds");
+    }
+
+    /**
+     * Gives the reasons missing from {@code rates} an even share of what is left of {@code declineRate}.
+     */
+    static Map<ValidationRule, Double> withDefaultRate(Map<ValidationRule, Double> rates, double declineRate) {
+        double given = 0;
+        for (double rate : rates.values()) {
+            given += rate;
+        }
+        int missing = RULES.length - rates.size();
+        for (ValidationRule rule : RULES) {
+            rates.putIfAbsent(rule, Math.max(0, declineRate - given) / missing);
+        }
+        return rates;
+    }
+
+    void writeUsers(Path path) throws IOException {
+        try (Writer writer = newWriter(path)) {
+            writer.write("user_id,username,balance,country,frozen,deposit_min,deposit_max,withdraw_min,withdraw_max\n");
+            String limits = "," + Money.format(DEPOSIT_MIN, Money.SCALE) + "," + Money.format(DEPOSIT_MAX, Money.SCALE)
+                    + "," + Money.format(WITHDRAW_MIN, Money.SCALE) + "," + Money.format(WITHDRAW_MAX, Money.SCALE);
+            for (int user = 0; user < users; user++) {
+                writer.write(userId(user) + ",user" + user + "," + Money.format(initialBalance(user), Money.SCALE)
+                        + "," + country(user) + "," + (isFrozen(user) ? 1 : 0) + limits + "\n");
+            }
+        }
+    }
+
+    void writeBins(Path path) throws IOException {
+        try (Writer writer = newWriter(path)) {
+            writer.write("name,range_from,range_to,type,country\n");
+            long width = BIN_SPACE / bins;
+            for (int bin = 0; bin < bins; bin++) {
+                long from = FIRST_BIN + bin * width;
+                writer.write("Bank " + bin + "," + from + "," + (from + width - 1) + "," + (isDebitBin(bin) ? "DC" : "CC")
+                        + "," + COUNTRIES[bin % COUNTRIES.length] + "\n");
+            }
+        }
+    }
+
+    /**
+     * Writes the transactions, and the balances they should leave every user with to {@code balancesPath}, and
+     * returns how many of them should be declined by each rule, by ordinal, followed by the number that should be
+     * approved.
+     */
+    long[] writeTransactions(Path path, Path balancesPath, long transactions) throws IOException {
+        Random random = new Random(seed + 1);
+        long[] balances = new long[users];
+        for (int user = 0; user < users; user++) {
+            balances[user] = initialBalance(user);
+        }
+        BitSet deposited = new BitSet(users);
+        int[] lastOwner = new int[COUNTRIES.length];
+        Arrays.fill(lastOwner, -1);
+        long[] counts = new long[RULES.length + 1];
+        String previousId = null;
+
+        try (CsvWriter writer = CsvWriter.open(path)) {
+            writer.append("transaction_id,user_id,type,amount,method,account_number\n");
+            for (long i = 0; i < transactions; i++) {
+                ValidationRule reason = pickReason(random.nextDouble());
+                int user = regularUser(random);
+                String transactionId = new UUID(random.nextLong(), random.nextLong()).toString();
+                String userId = userId(user);
+                String type = "DEPOSIT";
+                long amount = DEPOSIT_MIN + random.nextInt(99_000);
+                String method = "CARD";
+                String accountNumber = null;
+
+                if (reason != null) {
+                    switch (reason) {
+                        case USER_NOT_FOUND -> userId = "missing-" + user;
+                        case TRANSACTION_ID_NOT_UNIQUE -> {
+                            if (previousId == null) {
+                                reason = null;
+                            } else {
+                                transactionId = previousId;
+                            }
+                        }
+                        case USER_FROZEN -> {
+                            user = setAsideUser(random, FROZEN_USER);
+                            userId = userId(user);
+                        }
+                        case INVALID_PAYMENT_METHOD -> {
+                            switch (random.nextInt(4)) {
+                                case 0 -> accountNumber = "0" + card(user).substring(1);
+                                case 1 -> accountNumber = card(user + 1);
+                                case 2 -> {
+                                    method = "TRANSFER";
+                                    accountNumber = corruptChecksum(iban(user));
+                                }
+                                default -> method = "CRYPTO";
+                            }
+                        }
+                        // A card passes the payment method check only if issued in the user's country, so an IBAN
+                        // from the next user's
+                        case COUNTRY_MISMATCH -> {
+                            method = "TRANSFER";
+                            accountNumber = iban(user + 1);
+                        }
+                        case INVALID_AMOUNT -> amount = random.nextBoolean() ? 0 : DEPOSIT_MAX + 1;
+                        case INSUFFICIENT_BALANCE -> {
+                            user = setAsideUser(random, EMPTY_USER);
+                            userId = userId(user);
+                            type = "WITHDRAWAL";
+                            amount = WITHDRAW_MIN + random.nextInt(49_000);
+                        }
+                        // A second card of the user's that is never deposited with
+                        case WITHDRAWAL_NOT_ALLOWED -> {
+                            if (balances[user] < WITHDRAW_MIN) {
+                                reason = null;
+                            } else {
+                                type = "WITHDRAWAL";
+                                amount = Math.min(WITHDRAW_MIN + random.nextInt(49_000), balances[user]);
+                                accountNumber = card(user, mix(~user));
+                            }
+                        }
+                        // Only exact codes are valid types, although amount limits ignore case
+                        case INVALID_TRANSACTION_TYPE -> type = "deposit";
+                        case PAYMENT_ACCOUNT_IN_USE -> {
+                            int owner = lastOwner[user % COUNTRIES.length];
+                            if (owner < 0 || owner == user) {
+                                reason = null;
+                            } else {
+                                accountNumber = card(owner);
+                            }
+                        }
+                    }
+                }
+                if (reason == null) {
+                    // Approved: a deposit, by card or now and then from the user's IBAN, or a withdrawal once the
+                    // user has deposited with their card
+                    int draw = random.nextInt(10);
+                    if (deposited.get(user) && balances[user] >= WITHDRAW_MIN && draw >= 6) {
+                        type = "WITHDRAWAL";
+                        amount = Math.min(WITHDRAW_MIN + random.nextInt(49_000), balances[user]);
+                        balances[user] -= amount;
+                        lastOwner[user % COUNTRIES.length] = user;
+                    } else if (draw == 0) {
+                        method = "TRANSFER";
+                        accountNumber = iban(user);
+                        balances[user] += amount;
+                    } else {
+                        balances[user] += amount;
+                        deposited.set(user);
+                        lastOwner[user % COUNTRIES.length] = user;
+                    }
+                }
+                if (reason != ValidationRule.USER_NOT_FOUND) {
+                    previousId = transactionId;
+                }
+                counts[reason == null ? RULES.length : reason.ordinal()]++;
+
+                writer.append(transactionId).append(',').append(userId).append(',').append(type).append(',');
+                Money.appendTo(writer, amount, Money.SCALE);
+                writer.append(',').append(method).append(',')
+                        .append(accountNumber != null ? accountNumber : card(user)).append('\n');
+            }
+        }
+        writeBalances(balancesPath, balances);
+        return counts;
+    }
+
+    static String userId(int user) {
+        return "user-" + user;
+    }
+
+    static String country(int user) {
+        return COUNTRIES[user % COUNTRIES.length];
+    }
+
+    /** A debit card issued in the user's own country. */
+    String card(int user) {
+        return card(user, mix(user));
+    }
+
+    /** A valid IBAN in the user's own country. */
+    String iban(int user) {
+        String country = country(user);
+        String bban = String.format("%016d", (mix(user) >>> 1) % 10_000_000_000_000_000L);
+        int checkDigits = 98 - mod97(bban + country + "00");
+        return country + twoDigits(checkDigits) + bban;
+    }
+
+    private String card(int user, long mix) {
+        int countries = COUNTRIES.length;
+        int slot = (int) ((mix >>> 1) % (bins / countries));
+        if (!isDebitBin(slot * countries)) {
+            slot--;
+        }
+        int bin = slot * countries + user % countries;
+        long width = BIN_SPACE / bins;
+        long prefix = FIRST_BIN + bin * width + (mix >>> 8) % width;
+        return prefix + sixDigits(mix >>> 40);
+    }
+
+    private ValidationRule pickReason(double draw) {
+        for (ValidationRule rule : RULES) {
+            draw -= declineRates[rule.ordinal()];
+            if (draw < 0) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    // Any user but the ones set aside
+    private int regularUser(Random random) {
+        int user = random.nextInt(users);
+        return users >= 100 && user % 100 >= FROZEN_USER ? user - 2 : user;
+    }
+
+    private int setAsideUser(Random random, int remainder) {
+        return random.nextInt(users / 100) * 100 + remainder;
+    }
+
+    private boolean isFrozen(int user) {
+        return users >= 100 && user % 100 == FROZEN_USER;
+    }
+
+    private long initialBalance(int user) {
+        if (users >= 100 && user % 100 == EMPTY_USER) {
+            return 0;
+        }
+        // 100.00 to 99999.99, enough for the first withdrawal
+        return 10_000 + (mix(user) >>> 1) % 9_990_000;
+    }
+
+    private boolean isDebitBin(int bin) {
+        return bin / COUNTRIES.length % 10 != 9;
+    }
+
+    private long mix(int user) {
+        long z = seed + user * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // In users.csv order with the processor's header and formatting, so the files compare byte for byte
+    private static void writeBalances(Path path, long[] balances) throws IOException {
+        try (CsvWriter writer = CsvWriter.open(path)) {
+            writer.append(TransactionProcessor.BALANCES_HEADER);
+            for (int user = 0; user < balances.length; user++) {
+                writer.append(userId(user)).append(',');
+                Money.appendTo(writer, balances[user], Money.SCALE);
+                writer.append('\n');
+            }
+        }
+    }
+
+    private static void writeExpected(Path path, long[] counts) throws IOException {
+        try (Writer writer = newWriter(path)) {
+            writer.write("status,message,count\n");
+            writer.write("APPROVED,OK," + counts[RULES.length] + "\n");
+            for (ValidationRule rule : RULES) {
+                writer.write("DECLINED," + rule.getMessage() + "," + counts[rule.ordinal()] + "\n");
+            }
+        }
+    }
+
+    private static String corruptChecksum(String iban) {
+        char check = iban.charAt(3);
+        return iban.substring(0, 3) + (char) (check == '9' ? '0' : check + 1) + iban.substring(4);
+    }
+
+    private static int mod97(String digitsAndLetters) {
+        int remainder = 0;
+        for (int i = 0; i < digitsAndLetters.length(); i++) {
+            char c = digitsAndLetters.charAt(i);
+            int value = Character.isDigit(c) ? c - '0' : c - 'A' + 10;
+            remainder = (remainder * (value > 9 ? 100 : 10) + value) % 97;
+        }
+        return remainder;
+    }
+
+    private static String twoDigits(int value) {
+        return value < 10 ? "0" + value : String.valueOf(value);
+    }
+
+    private static String sixDigits(long value) {
+        return String.format("%06d", value % 1_000_000);
+    }
+
+    private static Writer newWriter(Path path) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path), StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,355 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * End-to-end throughput check of {@link TransactionProcessor}: generates input with {@link SyntheticDataGenerator}
+ * once per size, runs the processor on it in each mode in a fresh JVM and records rows per second, peak RSS and GC
+ * time. The best of {@code --runs} runs counts. Every run's events are also counted by status and message and
+ * compared with what the generator expected, and its balances.csv must match the generator's expected-balances.csv
+ * byte for byte, so a faster but wrong build does not pass.
+ * <p>
+ * Results go to results.csv in the work directory. With {@code --baseline=<file>} a scenario whose rows per second
+ * fell more than {@code --tolerance} below the baseline is flagged and the suite exits with 1;
+ * {@code --save-baseline} writes the results as the new baseline. A scenario is the mode together with every
+ * generator parameter, so only runs on the same input compare. Baselines only compare on the same machine and JVM
+ * options.
+ * <pre>
+ * java -cp target/benchmarks.jar org.example.ThroughputRegressionSuite --transactions=10000,1000000,10000000
+ *     --modes=batch,stream,parallel --jvm-args="-Xmx8g" --baseline=throughput-baseline.csv
+ * </pre>
+ */
+final class ThroughputRegressionSuite {
+
+    private static final String MEASURE = "--measure";
+    private static final String RESULT_PREFIX = "RESULT ";
+    private static final String RESULTS_HEADER = "mode,users,bins,decline_rate,seed,transactions,rows_per_sec,wall_ms,peak_rss_mb,gc_ms,gc_count\n";
+    private static final int OUTPUT_TAIL_LINES = 20;
+    private static final List<String> MODES = List.of("batch", "stream", "stream-background", "parallel", "checkpoint");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && MEASURE.equals(args[0])) {
+            measure(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        Path work = Paths.get("throughput-data");
+        int users = 100_000;
+        int bins = 10_000;
+        long[] sizes = {10_000, 1_000_000};
+        double declineRate = 0.5;
+        long seed = 42;
+        List<String> modes = List.of("batch", "stream", "parallel");
+        int runs = 3;
+        List<String> jvmArgs = List.of();
+        Path baselinePath = null;
+        double tolerance = 0.10;
+        boolean saveBaseline = false;
+        for (String arg : args) {
+            if (arg.startsWith("--work=")) {
+                work = Paths.get(arg.substring("--work=".length()));
+            } else if (arg.startsWith("--users=")) {
+                users = Integer.parseInt(arg.substring("--users=".length()));
+            } else if (arg.startsWith("--bins=")) {
+                bins = Integer.parseInt(arg.substring("--bins=".length()));
+            } else if (arg.startsWith("--transactions=")) {
+                sizes = Arrays.stream(arg.substring("--transactions=".length()).split(","))
+                        .mapToLong(Long::parseLong).toArray();
+            } else if (arg.startsWith("--decline-rate=")) {
+                declineRate = Double.parseDouble(arg.substring("--decline-rate=".length()));
+            } else if (arg.startsWith("--seed=")) {
+                seed = Long.parseLong(arg.substring("--seed=".length()));
+            } else if (arg.startsWith("--modes=")) {
+                modes = List.of(arg.substring("--modes=".length()).split(","));
+            } else if (arg.startsWith("--runs=")) {
+                runs = Integer.parseInt(arg.substring("--runs=".length()));
+            } else if (arg.startsWith("--jvm-args=")) {
+                jvmArgs = List.of(arg.substring("--jvm-args=".length()).trim().split("\\s+"));
+            } else if (arg.startsWith("--baseline=")) {
+                baselinePath = Paths.get(arg.substring("--baseline=".length()));
+            } else if (arg.startsWith("--tolerance=")) {
+                tolerance = Double.parseDouble(arg.substring("--tolerance=".length()));
+            } else if ("--save-baseline".equals(arg)) {
+                saveBaseline = true;
+            } else {
+                System.err.println("Unknown option: " + arg);
+                System.exit(2);
+            }
+        }
+        for (String mode : modes) {
+            if (!MODES.contains(mode)) {
+                System.err.println("Unknown mode " + mode + ", expected one of " + MODES);
+                System.exit(2);
+            }
+        }
+
+        boolean failed = false;
+        List<Result> results = new ArrayList<>();
+        for (long transactions : sizes) {
+            Path input = generate(work, users, bins, transactions, declineRate, seed);
+            Map<String, Long> expected = countEvents(input.resolve("expected.csv"), true);
+            for (String mode : modes) {
+                Path output = work.resolve("output-" + mode + "-" + transactions);
+                Files.createDirectories(output);
+                Result best = null;
+                for (int run = 0; run < runs; run++) {
+                    Result result = runProcessor(new Result(mode, users, bins, declineRate, seed, transactions),
+                            input, output, jvmArgs);
+                    if (best == null || result.rowsPerSecond() > best.rowsPerSecond()) {
+                        best = result;
+                    }
+                }
+                Map<String, Long> actual = countEvents(output.resolve("events.csv"), false);
+                if (!actual.equals(expected)) {
+                    System.err.println(mode + " with " + transactions + " transactions: events " + actual
+                            + " differ from the generated mix " + expected);
+                    failed = true;
+                }
+                long mismatch = Files.mismatch(input.resolve("expected-balances.csv"), output.resolve("balances.csv"));
+                if (mismatch >= 0) {
+                    System.err.println(mode + " with " + transactions + " transactions: balances.csv differs from"
+                            + " expected-balances.csv from byte " + mismatch);
+                    failed = true;
+                }
+                System.out.println(best);
+                results.add(best);
+            }
+        }
+        writeResults(work.resolve("results.csv"), results);
+
+        if (baselinePath != null && Files.exists(baselinePath)) {
+            failed |= compare(results, readResults(baselinePath), tolerance);
+        }
+        if (saveBaseline) {
+            if (baselinePath == null) {
+                baselinePath = Paths.get("throughput-baseline.csv");
+            }
+            writeResults(baselinePath, results);
+            System.out.println("Saved baseline " + baselinePath);
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    // Reuses input generated earlier with the same parameters; expected.csv is written last, so it marks a complete
+    // directory, and one from before expected-balances.csv existed is generated again
+    private static Path generate(Path work, int users, int bins, long transactions, double declineRate, long seed)
+            throws IOException {
+        Path input = work.resolve(String.format(Locale.ROOT, "input-%d-%d-%d-%s-%d",
+                users, bins, transactions, declineRate, seed));
+        if (!Files.exists(input.resolve("expected.csv")) || !Files.exists(input.resolve("expected-balances.csv"))) {
+            long startTime = System.currentTimeMillis();
+            SyntheticDataGenerator.generate(input, users, bins, transactions, declineRate, seed);
+            System.out.println("Generated " + input + " in " + (System.currentTimeMillis() - startTime)
+                    + " milliseconds");
+        }
+        return input;
+    }
+
+    // Returns the scenario with the measurements of one run
+    private static Result runProcessor(Result scenario, Path input, Path output, List<String> jvmArgs)
+            throws IOException, InterruptedException {
+        String mode = scenario.mode;
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ThroughputRegressionSuite.class.getName());
+        command.add(MEASURE);
+        command.add("--input=" + input);
+        command.add("--output=" + output);
+        command.addAll(modeArgs(mode, output));
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String result = null;
+        Deque<String> tail = new ArrayDeque<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    result = line.substring(RESULT_PREFIX.length());
+                } else {
+                    tail.addLast(line);
+                    if (tail.size() > OUTPUT_TAIL_LINES) {
+                        tail.removeFirst();
+                    }
+                }
+            }
+        }
+        int exitCode = process.waitFor();
+        if (exitCode != 0 || result == null) {
+            throw new IOException(mode + " run failed with exit code " + exitCode + ":\n" + String.join("\n", tail));
+        }
+        String[] fields = result.split(" ");
+        return new Result(scenario, Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                Long.parseLong(fields[3]));
+    }
+
+    private static List<String> modeArgs(String mode, Path output) {
+        return switch (mode) {
+            case "batch" -> List.of();
+            case "stream" -> List.of("--stream");
+            case "stream-background" -> List.of("--stream", "--background-writer");
+            case "parallel" -> List.of("--parallel");
+            case "checkpoint" -> List.of("--checkpoint=" + output.resolve("checkpoint"));
+            default -> throw new IllegalArgumentException("Unknown mode " + mode);
+        };
+    }
+
+    // Runs in the child JVM, which only lives for this one run
+    private static void measure(String[] args) throws IOException {
+        long startTime = System.nanoTime();
+        TransactionProcessor.main(args);
+        long wallNanos = System.nanoTime() - startTime;
+        long gcMillis = 0;
+        long gcCount = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcMillis += Math.max(0, collector.getCollectionTime());
+            gcCount += Math.max(0, collector.getCollectionCount());
+        }
+        System.out.println(RESULT_PREFIX + wallNanos + " " + gcMillis + " " + gcCount + " " + peakRssKilobytes());
+    }
+
+    // Linux only, -1 elsewhere
+    private static long peakRssKilobytes() {
+        Path status = Paths.get("/proc/self/status");
+        try {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not available
+        }
+        return -1;
+    }
+
+    /**
+     * Events by "status,message". {@code counted} files have the count as the third field, others one row per
+     * event.
+     */
+    private static Map<String, Long> countEvents(Path path, boolean counted) throws IOException {
+        Map<String, Long> counts = new HashMap<>();
+        CsvReader.read(path, 3, record -> counted
+                        ? Map.entry(record.getString(0) + "," + record.getString(1), record.getLong(2))
+                        : Map.entry(record.getString(1) + "," + record.getString(2), 1L),
+                count -> {
+                    if (count.getValue() > 0) {
+                        counts.merge(count.getKey(), count.getValue(), Long::sum);
+                    }
+                });
+        return counts;
+    }
+
+    private static boolean compare(List<Result> results, Map<String, Result> baseline, double tolerance) {
+        boolean regressed = false;
+        for (Result result : results) {
+            Result previous = baseline.get(result.key());
+            if (previous == null) {
+                System.out.println(result.key() + ": no baseline");
+                continue;
+            }
+            double change = result.rowsPerSecond() / previous.rowsPerSecond() - 1;
+            boolean regression = change < -tolerance;
+            regressed |= regression;
+            System.out.printf(Locale.ROOT, "%s: %.0f rows/s, baseline %.0f (%+.1f%%)%s%n", result.key(),
+                    result.rowsPerSecond(), previous.rowsPerSecond(), change * 100, regression ? " REGRESSION" : "");
+        }
+        return regressed;
+    }
+
+    private static void writeResults(Path path, List<Result> results) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writer.write(RESULTS_HEADER);
+            for (Result result : results) {
+                writer.write(String.format(Locale.ROOT, "%s,%.0f,%d,%d,%d,%d%n", result.key(),
+                        result.rowsPerSecond(), result.wallNanos / 1_000_000,
+                        result.peakRssKilobytes < 0 ? -1 : result.peakRssKilobytes / 1024, result.gcMillis,
+                        result.gcCount));
+            }
+        }
+    }
+
+    private static Map<String, Result> readResults(Path path) throws IOException {
+        Map<String, Result> results = new HashMap<>();
+        CsvReader.read(path, 11, record -> new Result(new Result(record.getString(0), record.getInt(1),
+                        record.getInt(2), Double.parseDouble(record.getString(3)), record.getLong(4), record.getLong(5)),
+                record.getLong(7) * 1_000_000, record.getLong(9), record.getLong(10),
+                record.getLong(8) < 0 ? -1 : record.getLong(8) * 1024), result -> results.put(result.key(), result));
+        return results;
+    }
+
+    private static final class Result {
+        private final String mode;
+        private final int users;
+        private final int bins;
+        private final double declineRate;
+        private final long seed;
+        private final long transactions;
+        private final long wallNanos;
+        private final long gcMillis;
+        private final long gcCount;
+        private final long peakRssKilobytes;
+
+        // A scenario that has not run yet
+        private Result(String mode, int users, int bins, double declineRate, long seed, long transactions) {
+            this.mode = mode;
+            this.users = users;
+            this.bins = bins;
+            this.declineRate = declineRate;
+            this.seed = seed;
+            this.transactions = transactions;
+            this.wallNanos = 0;
+            this.gcMillis = 0;
+            this.gcCount = 0;
+            this.peakRssKilobytes = -1;
+        }
+
+        private Result(Result scenario, long wallNanos, long gcMillis, long gcCount, long peakRssKilobytes) {
+            this.mode = scenario.mode;
+            this.users = scenario.users;
+            this.bins = scenario.bins;
+            this.declineRate = scenario.declineRate;
+            this.seed = scenario.seed;
+            this.transactions = scenario.transactions;
+            this.wallNanos = wallNanos;
+            this.gcMillis = gcMillis;
+            this.gcCount = gcCount;
+            this.peakRssKilobytes = peakRssKilobytes;
+        }
+
+        // Every generator parameter, so a baseline only matches runs on the same input
+        private String key() {
+            return mode + "," + users + "," + bins + "," + declineRate + "," + seed + "," + transactions;
+        }
+
+        private double rowsPerSecond() {
+            return transactions * 1e9 / Math.max(1, wallNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-18s %,12d transactions %,12.0f rows/s %,8d ms"
+                            + "  peak RSS %,6d MB  GC %,6d ms (%d collections)", mode, transactions, rowsPerSecond(),
+                    wallNanos / 1_000_000, peakRssKilobytes < 0 ? -1 : peakRssKilobytes / 1024, gcMillis, gcCount);
+        }
+    }
+}
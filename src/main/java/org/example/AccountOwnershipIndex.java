@@ -0,0 +1,107 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Maps every payment account (IBAN or card number) to the user that first used it in an approved transaction,
+ * so that "Users cannot share IBAN/card" costs two array reads.
+ * <p>
+ * Accounts and users are {@link Dictionaries} ids, so the owners are an {@code int} table indexed by account id,
+ * split into pages that are allocated on first claim. Claims are compare-and-set, which lets the sharded engine
+ * share one table between its shards.
+ * <p>
+ * An account is only interned when it is claimed, so the account dictionary holds exactly the claimed accounts. A
+ * transaction whose account had no id when it was read is looked up again here, since an approval may have claimed
+ * the account in the meantime.
+ */
+class AccountOwnershipIndex {
+
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int UNCLAIMED = 0;
+
+    private final StringDictionary accounts;
+    // Owner's user ID + 1 per account id, UNCLAIMED when nobody owns it yet
+    private final AtomicReferenceArray<AtomicIntegerArray> pages;
+    private final AtomicInteger size;
+
+    AccountOwnershipIndex(StringDictionary accounts) {
+        this.accounts = accounts;
+        pages = new AtomicReferenceArray<>(1 << (Integer.SIZE - 1 - PAGE_BITS));
+        size = new AtomicInteger();
+    }
+
+    /**
+     * A view of the same owners as {@code shared}, for subclasses that change how they are checked.
+     */
+    protected AccountOwnershipIndex(AccountOwnershipIndex shared) {
+        accounts = shared.accounts;
+        pages = shared.pages;
+        size = shared.size;
+    }
+
+    boolean canUse(Transaction transaction) {
+        int owner = ownerOf(resolve(transaction));
+        return owner == UNCLAIMED || owner == transaction.getUserId() + 1;
+    }
+
+    /**
+     * Makes the transaction's user the owner of its account unless it already has one, interning the account
+     * number when this is its first claim.
+     */
+    void claim(Transaction transaction) {
+        int accountNumber = resolve(transaction);
+        if (accountNumber == StringDictionary.NOT_FOUND) {
+            accountNumber = accounts.intern(transaction.getNewAccountNumber());
+            transaction.setAccountNumber(accountNumber);
+            transaction.setNewAccountNumber(null);
+        }
+        if (page(accountNumber).compareAndSet(accountNumber & (PAGE_SIZE - 1), UNCLAIMED,
+                transaction.getUserId() + 1)) {
+            size.incrementAndGet();
+        }
+    }
+
+    /**
+     * The transaction's account id, giving it the id when its account has been claimed since it was read, or
+     * {@link StringDictionary#NOT_FOUND} while the account is unclaimed.
+     */
+    final int resolve(Transaction transaction) {
+        int accountNumber = transaction.getAccountNumber();
+        if (accountNumber == StringDictionary.NOT_FOUND && transaction.getNewAccountNumber() != null) {
+            accountNumber = accounts.find(transaction.getNewAccountNumber());
+            if (accountNumber != StringDictionary.NOT_FOUND) {
+                transaction.setAccountNumber(accountNumber);
+                transaction.setNewAccountNumber(null);
+            }
+        }
+        return accountNumber;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * User ID + 1 of the account's owner, or 0 while it has none or is {@link StringDictionary#NOT_FOUND}.
+     */
+    protected final int ownerOf(int accountNumber) {
+        if (accountNumber < 0) {
+            return UNCLAIMED;
+        }
+        AtomicIntegerArray page = pages.get(accountNumber >>> PAGE_BITS);
+        return page == null ? UNCLAIMED : page.get(accountNumber & (PAGE_SIZE - 1));
+    }
+
+    private AtomicIntegerArray page(int accountNumber) {
+        int index = accountNumber >>> PAGE_BITS;
+        AtomicIntegerArray page = pages.get(index);
+        if (page == null) {
+            pages.compareAndSet(index, null, new AtomicIntegerArray(PAGE_SIZE));
+            page = pages.get(index);
+        }
+        return page;
+    }
+}
@@ -0,0 +1,384 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Append-only journal of the balance changes of a run, and the incremental writer of balances.csv built on it.
+ * <p>
+ * Every approved transaction appends one fixed-size record: the user's position in users.csv, the amount's display
+ * scale and the signed change in minor units, 13 bytes in all. Besides a replayable history of the run's balance
+ * changes, this tells which users changed. When the run writes balances.csv, the journal ends with the offset of
+ * every {@value #ROW_INDEX_STRIDE}th row, so the next run can seek straight to the rows it changed: it encodes only
+ * those and copies every other row from the previous balances.csv as it is, without scanning it. A run that moves a
+ * few thousand balances out of millions then writes a few thousand rows instead of millions.
+ * <p>
+ * The previous balances.csv is only reused when the journal left behind says it was written by a finished run over
+ * the same users.csv (size and modification time) and the file is unchanged since. Its rows then differ from the
+ * start balances exactly for the users that run changed, which are encoded again too. Otherwise, after resuming
+ * from a checkpoint, or when so many users changed that copying around them costs more than encoding everything,
+ * balances.csv is written in full.
+ * <p>
+ * Layout, big-endian:
+ * <pre>
+ * int magic, int version, long usersSize, long usersModified, int userCount,
+ * long balancesSize, long balancesModified, long rowIndexPosition (the last three 0 until balances.csv is written),
+ * per approval: int userIndex, byte scale, long delta,
+ * from rowIndexPosition: long offset of every ROW_INDEX_STRIDEth row, long balancesSize
+ * </pre>
+ * Records may come from several threads; the sharded engine applies them per user in input order.
+ */
+final class BalanceJournal implements Closeable {
+
+    static final int VERSION = 1;
+    static final int ROW_INDEX_STRIDE = 128;
+    // Rewriting in place costs two system calls per changed row, so beyond one in this many users a full write wins
+    private static final int MAX_CHANGED_FRACTION = 256;
+    private static final int MAGIC = 0x54584244;
+    private static final int BALANCES_OFFSET = 28;
+    private static final int HEADER_SIZE = 52;
+    private static final int RECORD_SIZE = Integer.BYTES + 1 + Long.BYTES;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final UserRegistry users;
+    private final FileChannel channel;
+    private final ByteBuffer records = ByteBuffer.allocate(BUFFER_SIZE - BUFFER_SIZE % RECORD_SIZE);
+    private final long usersSize;
+    private final long usersModified;
+    // Users with a record in this run
+    private final BitSet changed = new BitSet();
+    // Users changed by the run that wrote the previous balances.csv, and where its rows are; null when that file
+    // cannot be reused
+    private BitSet previous;
+    private long[] previousRows;
+    private long previousBalancesModified;
+    // Whether the journal on disk was started for the same users.csv, so that a checkpoint may continue it
+    private boolean sameUsers;
+
+    private BalanceJournal(Path path, Path usersPath, UserRegistry users) throws IOException {
+        this.users = users;
+        usersSize = Files.size(usersPath);
+        usersModified = Files.getLastModifiedTime(usersPath).toMillis();
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Opens the journal and reads what the previous run left in it. Nothing is recorded until {@link #start} or
+     * {@link #resume} has been called.
+     */
+    static BalanceJournal open(Path path, Path usersPath, UserRegistry users) throws IOException {
+        BalanceJournal journal = new BalanceJournal(path, usersPath, users);
+        try {
+            journal.readPrevious();
+        } catch (IOException | RuntimeException e) {
+            journal.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    /**
+     * Starts the journal of a new run, dropping the previous run's records.
+     */
+    void start() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(usersSize).putLong(usersModified).putInt(users.size())
+                .putLong(0).putLong(0).putLong(0).flip();
+        channel.truncate(0);
+        write(header, 0);
+        channel.force(false);
+        channel.position(HEADER_SIZE);
+        sameUsers = true;
+    }
+
+    /**
+     * Continues the journal of an interrupted run from {@code length}, a {@link #sync} result saved with a
+     * checkpoint, dropping the records after it. Starts over when the journal is not that run's.
+     */
+    void resume(long length) throws IOException {
+        if (!sameUsers || previous != null || length < HEADER_SIZE || length > channel.size()
+                || (length - HEADER_SIZE) % RECORD_SIZE != 0) {
+            start();
+            return;
+        }
+        channel.truncate(length);
+        channel.position(length);
+    }
+
+    /**
+     * Appends the balance change of an approved transaction; registered as an engine approval listener.
+     */
+    synchronized void record(Transaction transaction) {
+        int index = users.indexOf(transaction.getUserId());
+        if (records.remaining() < RECORD_SIZE) {
+            try {
+                flushRecords();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not journal balance change", e);
+            }
+        }
+        long amount = transaction.getAmount();
+        records.putInt(index)
+                .put((byte) transaction.getAmountScale())
+                .putLong(transaction.getType() == Dictionaries.WITHDRAWAL ? -amount : amount);
+        changed.set(index);
+    }
+
+    /**
+     * Writes out the records so far, waits until they are on disk and returns the journal's length.
+     */
+    synchronized long sync() throws IOException {
+        flushRecords();
+        channel.force(false);
+        return channel.position();
+    }
+
+    /**
+     * Writes balances.csv, encoding only the changed rows when the previous file can be reused, and marks the run
+     * as finished.
+     */
+    synchronized void writeBalances(Path path) throws IOException {
+        flushRecords();
+        long[] rows = null;
+        if (previous != null && Files.exists(path) && Files.size(path) == previousRows[previousRows.length - 1]
+                && Files.getLastModifiedTime(path).toMillis() == previousBalancesModified) {
+            previous.or(changed);
+            if (previous.cardinality() <= users.size() / MAX_CHANGED_FRACTION) {
+                rows = writeChangedRows(path, previous);
+            }
+        }
+        if (rows == null) {
+            rows = writeAllRows(path);
+        }
+
+        long rowIndexPosition = channel.position();
+        ByteBuffer rowIndex = ByteBuffer.allocate(rows.length * Long.BYTES);
+        rowIndex.asLongBuffer().put(rows);
+        write(rowIndex, rowIndexPosition);
+        ByteBuffer balances = ByteBuffer.allocate(3 * Long.BYTES);
+        balances.putLong(Files.size(path)).putLong(Files.getLastModifiedTime(path).toMillis())
+                .putLong(rowIndexPosition).flip();
+        write(balances, BALANCES_OFFSET);
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flushRecords();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void flushRecords() throws IOException {
+        records.flip();
+        while (records.hasRemaining()) {
+            channel.write(records);
+        }
+        records.clear();
+    }
+
+    private void write(ByteBuffer source, long position) throws IOException {
+        while (source.hasRemaining()) {
+            channel.write(source, position + source.position());
+        }
+    }
+
+    private void readPrevious() throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!readFully(header, 0) || header.flip().getInt() != MAGIC || header.getInt() != VERSION
+                || header.getLong() != usersSize || header.getLong() != usersModified
+                || header.getInt() != users.size()) {
+            return;
+        }
+        sameUsers = true;
+        long balancesSize = header.getLong();
+        long balancesModified = header.getLong();
+        long rowIndexPosition = header.getLong();
+        int rowIndexLength = rowIndexLength(users.size());
+        if (rowIndexPosition == 0 || (rowIndexPosition - HEADER_SIZE) % RECORD_SIZE != 0
+                || size != rowIndexPosition + (long) rowIndexLength * Long.BYTES) {
+            // Interrupted run
+            return;
+        }
+
+        BitSet changedBefore = new BitSet(users.size());
+        ByteBuffer buffer = ByteBuffer.allocate(records.capacity());
+        for (long position = HEADER_SIZE; position < rowIndexPosition; position += buffer.limit()) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), rowIndexPosition - position));
+            if (!readFully(buffer, position)) {
+                return;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                int index = buffer.getInt();
+                buffer.position(buffer.position() + 1 + Long.BYTES);
+                if (index < 0 || index >= users.size()) {
+                    System.err.println("Ignoring balance journal with unknown users");
+                    return;
+                }
+                changedBefore.set(index);
+            }
+        }
+        ByteBuffer rowIndex = ByteBuffer.allocate(rowIndexLength * Long.BYTES);
+        if (!readFully(rowIndex, rowIndexPosition)) {
+            return;
+        }
+        long[] rows = new long[rowIndexLength];
+        rowIndex.flip().asLongBuffer().get(rows);
+        if (rows[rows.length - 1] != balancesSize) {
+            return;
+        }
+        previous = changedBefore;
+        previousRows = rows;
+        previousBalancesModified = balancesModified;
+    }
+
+    // False when the journal ends before the buffer is full
+    private boolean readFully(ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) <= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Row index entries: one per ROW_INDEX_STRIDE users and the file size
+    private static int rowIndexLength(int userCount) {
+        return (userCount + ROW_INDEX_STRIDE - 1) / ROW_INDEX_STRIDE + 1;
+    }
+
+    private long[] writeAllRows(Path path) throws IOException {
+        long[] rows = new long[rowIndexLength(users.size())];
+        try (CsvWriter writer = CsvWriter.open(path)) {
+            writer.append(TransactionProcessor.BALANCES_HEADER);
+            for (int i = 0; i < users.size(); i++) {
+                if (i % ROW_INDEX_STRIDE == 0) {
+                    rows[i / ROW_INDEX_STRIDE] = writer.position();
+                }
+                TransactionProcessor.appendBalance(writer, users.get(i));
+            }
+            rows[rows.length - 1] = writer.position();
+        }
+        return rows;
+    }
+
+    // Writes the new balances.csv next to the current one, copying the rows of users not to rewrite, and moves it
+    // into place. Returns its row index, or null, leaving the current file alone, when that does not have the rows
+    // the previous row index says it has.
+    private long[] writeChangedRows(Path path, BitSet rewrite) throws IOException {
+        long[] rows = new long[previousRows.length];
+        Path directory = path.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel current = FileChannel.open(path, StandardOpenOption.READ);
+                 CsvWriter writer = CsvWriter.open(temporary)) {
+                LineEnds lineEnds = new LineEnds(current);
+                // Copied bytes move by the difference in length of the rows encoded before them
+                long shift = 0;
+                long copyFrom = 0;
+                int indexed = 0;
+                for (int i = rewrite.nextSetBit(0); i >= 0; i = rewrite.nextSetBit(i + 1)) {
+                    long rowStart = lineEnds.rowStart(i);
+                    long rowEnd = lineEnds.next();
+                    if (rowStart < 0 || rowEnd < 0) {
+                        return null;
+                    }
+                    for (; indexed * ROW_INDEX_STRIDE < i; indexed++) {
+                        rows[indexed] = previousRows[indexed] + shift;
+                    }
+                    writer.appendFrom(current, copyFrom, rowStart - copyFrom);
+                    if (i % ROW_INDEX_STRIDE == 0) {
+                        rows[indexed++] = writer.position();
+                    }
+                    TransactionProcessor.appendBalance(writer, users.get(i));
+                    copyFrom = rowEnd;
+                    shift = writer.position() - rowEnd;
+                }
+                for (; indexed < rows.length; indexed++) {
+                    rows[indexed] = previousRows[indexed] + shift;
+                }
+                writer.appendFrom(current, copyFrom, current.size() - copyFrom);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return rows;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    // Finds rows of the previous balances.csv through its row index, reading on from the last row found when the
+    // next one is close and seeking otherwise
+    private final class LineEnds {
+        private final FileChannel file;
+        private final byte[] bytes = new byte[64 * 1024];
+        private final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        // File offset of bytes[0]
+        private long bufferStart;
+        private int index;
+        private int limit;
+        // The row that starts at bufferStart + index
+        private int row = -1;
+
+        private LineEnds(FileChannel file) {
+            this.file = file;
+        }
+
+        // Offset where the row starts, -1 when the file ends first
+        long rowStart(int target) throws IOException {
+            if (row < 0 || target < row || target - row > ROW_INDEX_STRIDE) {
+                int indexed = target / ROW_INDEX_STRIDE;
+                seek(previousRows[indexed]);
+                row = indexed * ROW_INDEX_STRIDE;
+            }
+            while (row < target) {
+                if (next() < 0) {
+                    return -1;
+                }
+            }
+            return bufferStart + index;
+        }
+
+        // Offset just past the next '\n', -1 when there is none
+        long next() throws IOException {
+            while (true) {
+                while (index < limit) {
+                    if (bytes[index++] == '\n') {
+                        row++;
+                        return bufferStart + index;
+                    }
+                }
+                bufferStart += limit;
+                buffer.clear();
+                int read = file.read(buffer, bufferStart);
+                index = 0;
+                limit = Math.max(read, 0);
+                if (read <= 0) {
+                    return -1;
+                }
+            }
+        }
+
+        private void seek(long offset) {
+            if (offset >= bufferStart && offset <= bufferStart + limit) {
+                index = (int) (offset - bufferStart);
+            } else {
+                bufferStart = offset;
+                index = 0;
+                limit = 0;
+            }
+        }
+    }
+}
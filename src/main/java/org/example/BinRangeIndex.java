@@ -0,0 +1,222 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Immutable BIN lookup table resolved with a single binary search.
+ * <p>
+ * The mappings are flattened into sorted, non-overlapping {@code [from, to]} segments stored in parallel
+ * {@code long[]} arrays. Each segment keeps the mapping that appears first in bins.csv among those covering it, and
+ * the countries of all debit card mappings covering it: a card is a valid debit card of a country when any of its
+ * ranges says so, however the ranges overlap.
+ */
+final class BinRangeIndex {
+
+    static final int CARD_PREFIX_LENGTH = 10;
+
+    private final long[] from;
+    private final long[] to;
+    private final BinMapping[] mappings;
+    // Countries of the debit card mappings covering segment i are debitCardCountries[starts[i]..starts[i + 1])
+    private final int[] debitCardCountryStarts;
+    private final int[] debitCardCountries;
+
+    private BinRangeIndex(long[] from, long[] to, BinMapping[] mappings, int[] debitCardCountryStarts,
+                          int[] debitCardCountries) {
+        this.from = from;
+        this.to = to;
+        this.mappings = mappings;
+        this.debitCardCountryStarts = debitCardCountryStarts;
+        this.debitCardCountries = debitCardCountries;
+    }
+
+    static BinRangeIndex build(List<BinMapping> binMappings) {
+        Integer[] byStart = new Integer[binMappings.size()];
+        for (int i = 0; i < byStart.length; i++) {
+            byStart[i] = i;
+        }
+        Arrays.sort(byStart, Comparator.comparingLong(i -> binMappings.get(i).getRangeFrom()));
+
+        // Every range start and every position right after a range end is a point where the winning mapping can change
+        long[] boundaries = new long[byStart.length * 2];
+        int count = 0;
+        for (BinMapping binMapping : binMappings) {
+            if (binMapping.getRangeFrom() > binMapping.getRangeTo()) {
+                continue;
+            }
+            boundaries[count++] = binMapping.getRangeFrom();
+            if (binMapping.getRangeTo() != Long.MAX_VALUE) {
+                boundaries[count++] = binMapping.getRangeTo() + 1;
+            }
+        }
+        boundaries = Arrays.stream(boundaries, 0, count).sorted().distinct().toArray();
+
+        List<long[]> segments = new ArrayList<>();
+        List<BinMapping> owners = new ArrayList<>();
+        List<int[]> countries = new ArrayList<>();
+        PriorityQueue<Integer> active = new PriorityQueue<>();
+        int next = 0;
+        for (int b = 0; b < boundaries.length; b++) {
+            long start = boundaries[b];
+            while (next < byStart.length && binMappings.get(byStart[next]).getRangeFrom() <= start) {
+                if (binMappings.get(byStart[next]).getRangeFrom() <= binMappings.get(byStart[next]).getRangeTo()) {
+                    active.add(byStart[next]);
+                }
+                next++;
+            }
+            while (!active.isEmpty() && binMappings.get(active.peek()).getRangeTo() < start) {
+                active.poll();
+            }
+            if (active.isEmpty()) {
+                continue;
+            }
+            BinMapping owner = binMappings.get(active.peek());
+            int[] debitCardCountries = debitCardCountries(binMappings, active, start);
+            long end = b + 1 < boundaries.length ? boundaries[b + 1] - 1 : owner.getRangeTo();
+            int last = owners.size() - 1;
+            if (last >= 0 && owners.get(last) == owner && segments.get(last)[1] + 1 == start
+                    && Arrays.equals(countries.get(last), debitCardCountries)) {
+                segments.get(last)[1] = end;
+            } else {
+                segments.add(new long[]{start, end});
+                owners.add(owner);
+                countries.add(debitCardCountries);
+            }
+        }
+
+        long[] from = new long[segments.size()];
+        long[] to = new long[segments.size()];
+        int[] countryStarts = new int[segments.size() + 1];
+        for (int i = 0; i < from.length; i++) {
+            from[i] = segments.get(i)[0];
+            to[i] = segments.get(i)[1];
+            countryStarts[i + 1] = countryStarts[i] + countries.get(i).length;
+        }
+        int[] countryIds = new int[countryStarts[from.length]];
+        for (int i = 0; i < from.length; i++) {
+            System.arraycopy(countries.get(i), 0, countryIds, countryStarts[i], countries.get(i).length);
+        }
+        return new BinRangeIndex(from, to, owners.toArray(new BinMapping[0]), countryStarts, countryIds);
+    }
+
+    // Sorted, distinct countries of the debit card mappings covering start; the queue still holds some that ended
+    private static int[] debitCardCountries(List<BinMapping> binMappings, PriorityQueue<Integer> active, long start) {
+        return active.stream()
+                .map(binMappings::get)
+                .filter(mapping -> mapping.getRangeTo() >= start && mapping.getType() == Dictionaries.DEBIT_CARD)
+                .mapToInt(BinMapping::getCountry)
+                .sorted()
+                .distinct()
+                .toArray();
+    }
+
+    /**
+     * Resolves the mapping for the first {@value #CARD_PREFIX_LENGTH} digits of a card number, or {@code null}
+     * when the number is too short, is not numeric or falls outside every range.
+     */
+    BinMapping find(CharSequence accountNumber) {
+        long prefix = cardPrefix(accountNumber);
+        return prefix < 0 ? null : find(prefix);
+    }
+
+    BinMapping find(long cardPrefix) {
+        int segment = findSegment(cardPrefix);
+        return segment < 0 ? null : mappings[segment];
+    }
+
+    /**
+     * The segment holding the card prefix, or -1 when it falls outside every range.
+     */
+    int findSegment(long cardPrefix) {
+        int low = 0;
+        int high = from.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (from[mid] <= cardPrefix) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high >= 0 && cardPrefix <= to[high] ? high : -1;
+    }
+
+    /**
+     * Whether a debit card mapping of the country covers the segment.
+     */
+    boolean isDebitCardCountry(int segment, int country) {
+        for (int i = debitCardCountryStarts[segment]; i < debitCardCountryStarts[segment + 1]; i++) {
+            if (debitCardCountries[i] == country) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int size() {
+        return from.length;
+    }
+
+    /**
+     * An index over segments as produced by {@link #build}: sorted, non-overlapping, each with its mapping and
+     * with the countries of its debit card mappings at {@code debitCardCountries[starts[i]..starts[i + 1])}.
+     */
+    static BinRangeIndex fromSegments(long[] from, long[] to, BinMapping[] mappings, int[] debitCardCountryStarts,
+                                      int[] debitCardCountries) {
+        if (from.length != to.length || from.length != mappings.length
+                || debitCardCountryStarts.length != from.length + 1) {
+            throw new IllegalArgumentException("Segment arrays differ in length");
+        }
+        if (debitCardCountryStarts[0] != 0 || debitCardCountryStarts[from.length] != debitCardCountries.length) {
+            throw new IllegalArgumentException("Debit card countries do not match their starts");
+        }
+        for (int i = 0; i < from.length; i++) {
+            if (from[i] > to[i] || i > 0 && to[i - 1] >= from[i]) {
+                throw new IllegalArgumentException("Segments are not sorted and disjoint at " + i);
+            }
+            if (debitCardCountryStarts[i] > debitCardCountryStarts[i + 1]) {
+                throw new IllegalArgumentException("Debit card country starts decrease at " + i);
+            }
+        }
+        return new BinRangeIndex(from, to, mappings, debitCardCountryStarts, debitCardCountries);
+    }
+
+    long getSegmentFrom(int segment) {
+        return from[segment];
+    }
+
+    long getSegmentTo(int segment) {
+        return to[segment];
+    }
+
+    BinMapping getSegmentMapping(int segment) {
+        return mappings[segment];
+    }
+
+    int getDebitCardCountryCount(int segment) {
+        return debitCardCountryStarts[segment + 1] - debitCardCountryStarts[segment];
+    }
+
+    int getDebitCardCountry(int segment, int index) {
+        return debitCardCountries[debitCardCountryStarts[segment] + index];
+    }
+
+    static long cardPrefix(CharSequence accountNumber) {
+        if (accountNumber == null || accountNumber.length() < CARD_PREFIX_LENGTH) {
+            return -1;
+        }
+        long prefix = 0;
+        for (int i = 0; i < CARD_PREFIX_LENGTH; i++) {
+            int digit = accountNumber.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            prefix = prefix * 10 + digit;
+        }
+        return prefix;
+    }
+}
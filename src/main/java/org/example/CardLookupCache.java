@@ -0,0 +1,110 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of BIN lookups by card prefix, so that the cards that make up most of the traffic are resolved
+ * once instead of having the BIN table searched on every transaction.
+ * <p>
+ * Keys are the numeric 10-digit card prefixes the BIN ranges are defined over, so every card is cached, whether or
+ * not its account number was ever claimed, and cards sharing a prefix share an entry. The cache is 2-way
+ * set-associative with LRU replacement in each set: a hit in the second way moves the entry to the first, and a miss
+ * evicts the second. Each entry is a single {@code long} holding both the prefix and the BIN segment (or none), read
+ * and written atomically, so the shards of the sharded engine share one cache without locking; at worst two threads
+ * updating the same set at once lose an entry, never mix one up.
+ * <p>
+ * The account number's BIN segment, and with it the card type and countries the payment method and country checks
+ * compare, comes straight from the entry on a hit.
+ */
+final class CardLookupCache {
+
+    static final int DEFAULT_CAPACITY = 1 << 16;
+    // Prefixes have at most 10 digits, which fit the 34 bits above the segment
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private final BinRangeIndex binIndex;
+    // Per entry: card prefix + 1 in the high bits, BIN segment + 1 (0 when not a known card) in the low ones
+    private final AtomicLongArray entries;
+    private final int setMask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    CardLookupCache(BinRangeIndex binIndex) {
+        this(binIndex, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * A cache of at most {@code capacity} account numbers, rounded up to a power of two.
+     */
+    CardLookupCache(BinRangeIndex binIndex, int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2: " + capacity);
+        }
+        if (binIndex.size() > SEGMENT_MASK) {
+            throw new IllegalArgumentException("Too many BIN segments to cache: " + binIndex.size());
+        }
+        this.binIndex = binIndex;
+        int sets = Integer.highestOneBit(capacity - 1);
+        this.entries = new AtomicLongArray(sets * 2);
+        this.setMask = sets - 1;
+    }
+
+    /**
+     * The {@link BinRangeIndex} segment of the account number, or -1 when it is not a known card. Account numbers
+     * without a card prefix, such as IBANs, are not cached.
+     */
+    int find(CharSequence accountNumber) {
+        long prefix = BinRangeIndex.cardPrefix(accountNumber);
+        if (prefix < 0) {
+            return -1;
+        }
+        long key = (prefix + 1) << SEGMENT_BITS;
+        int first = (mix(prefix) & setMask) * 2;
+        long entry = entries.getOpaque(first);
+        if ((entry & ~SEGMENT_MASK) == key) {
+            hits.increment();
+            return segment(entry);
+        }
+        long second = entries.getOpaque(first + 1);
+        if ((second & ~SEGMENT_MASK) == key) {
+            hits.increment();
+            entries.setOpaque(first, second);
+            entries.setOpaque(first + 1, entry);
+            return segment(second);
+        }
+
+        misses.increment();
+        long resolved = key | (binIndex.findSegment(prefix) + 1);
+        entries.setOpaque(first + 1, entry);
+        entries.setOpaque(first, resolved);
+        return segment(resolved);
+    }
+
+    BinRangeIndex getBinIndex() {
+        return binIndex;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    int capacity() {
+        return entries.length();
+    }
+
+    private static int segment(long entry) {
+        return (int) (entry & SEGMENT_MASK) - 1;
+    }
+
+    // Prefixes of one bank are close together, spread them over the sets
+    private static int mix(long prefix) {
+        int h = (int) (prefix ^ (prefix >>> 32)) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,395 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * Checkpoints of a streaming run, so that a run that stops half-way resumes from its last checkpoint and still
+ * writes the same events.csv and balances.csv as an uninterrupted one.
+ * <p>
+ * The checkpoint directory holds three append-only journals, which every checkpoint extends by what is new since the
+ * previous one, and a manifest that says where the checkpoint ends:
+ * <ul>
+ *     <li>{@value #TRANSACTION_IDS}: the transaction IDs seen, copied from the {@link TransactionIdSet} log;</li>
+ *     <li>{@value #APPROVALS}: user, type, method and account of every approved transaction, which rebuild
+ *     account ownership and deposit accounts;</li>
+ *     <li>{@value #BALANCES}: the balance of every user changed since the previous checkpoint, applied in order on
+ *     top of those in users.csv;</li>
+ *     <li>{@value #MANIFEST}: the offset in the transactions file to continue from and the size of events.csv, of
+ *     the journals and of the {@link BalanceJournal} if there is one. It is replaced atomically, so it always
+ *     describes a complete checkpoint; events and journal entries written after it are cut off when resuming.</li>
+ * </ul>
+ * A checkpoint is only resumed for the same users, BIN mapping and transactions files (size and modification time)
+ * and number of users.
+ * <p>
+ * Manifest layout, big-endian:
+ * <pre>
+ * int magic, int version, long usersSize, long usersModified, long binMappingsSize, long binMappingsModified,
+ * long inputSize, long inputModified, long inputOffset, long eventsPosition, long transactionIdsLength,
+ * long approvalsLength, long balancesLength, long balanceJournalLength, int userCount,
+ * long crc32 of everything before it
+ * </pre>
+ * Journal entries are UTF-8 strings with a 2-byte length, one per ID and four per approval; balance entries are
+ * int userIndex, long balance, int balanceScale.
+ */
+final class Checkpoint implements Closeable {
+
+    static final int VERSION = 3;
+    static final String MANIFEST = "checkpoint.bin";
+    static final String TRANSACTION_IDS = "transaction-ids.log";
+    static final String APPROVALS = "approvals.log";
+    static final String BALANCES = "balances.log";
+    private static final int MAGIC = 0x54584350;
+    private static final int SOURCES_SIZE = 6 * Long.BYTES;
+    private static final int MANIFEST_SIZE = 2 * Integer.BYTES + 12 * Long.BYTES + Integer.BYTES + Long.BYTES;
+    private static final int BALANCE_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Path directory;
+    private final UserRegistry users;
+    private final TransactionIdSet transactionIds;
+    // Null when the run keeps no balance journal
+    private final BalanceJournal balanceJournal;
+    private final FileChannel transactionIdLog;
+    private final FileChannel approvalLog;
+    private final FileChannel balanceLog;
+    private final ByteBuffer approvals = ByteBuffer.allocate(BUFFER_SIZE);
+    // Indexes of the users approved since the previous checkpoint
+    private final BitSet changedUsers = new BitSet();
+    // Size and modification time of users.csv, the BIN mapping and the transactions file
+    private final ByteBuffer sources = ByteBuffer.allocate(SOURCES_SIZE);
+    // TransactionIdSet log position up to which the IDs are in the journal
+    private long transactionIdsLogged;
+    private boolean resumed;
+    private long inputOffset;
+    private long eventsPosition;
+    private final ByteBuffer manifest = ByteBuffer.allocate(MANIFEST_SIZE);
+
+    private Checkpoint(Path directory, Path usersPath, Path binMappingsPath, Path input, UserRegistry users,
+                       TransactionIdSet transactionIds, BalanceJournal balanceJournal) throws IOException {
+        this.directory = directory;
+        this.users = users;
+        this.transactionIds = transactionIds;
+        this.balanceJournal = balanceJournal;
+        Files.createDirectories(directory);
+        for (Path source : new Path[]{usersPath, binMappingsPath, input}) {
+            sources.putLong(Files.size(source)).putLong(Files.getLastModifiedTime(source).toMillis());
+        }
+        sources.flip();
+        transactionIdLog = openJournal(directory.resolve(TRANSACTION_IDS));
+        approvalLog = openJournal(directory.resolve(APPROVALS));
+        balanceLog = openJournal(directory.resolve(BALANCES));
+    }
+
+    /**
+     * Opens the checkpoint directory for a run over {@code input}. When it holds a checkpoint of the same input and
+     * reference files, the users' balances, the transaction IDs and the engine's account state are restored from it
+     * and {@link #isResumed} is true; otherwise the run starts from the beginning. From then on every transaction
+     * the engine approves is journaled. The balance journal, which may be null, is resumed or started accordingly.
+     */
+    static Checkpoint open(Path directory, Path usersPath, Path binMappingsPath, Path input, Path events,
+                           UserRegistry users, TransactionIdSet transactionIds, BalanceJournal balanceJournal,
+                           TransactionEngine engine) throws IOException {
+        Checkpoint checkpoint = new Checkpoint(directory, usersPath, binMappingsPath, input, users, transactionIds,
+                balanceJournal);
+        try {
+            checkpoint.restore(events, engine);
+        } catch (IOException | RuntimeException e) {
+            checkpoint.close();
+            throw e;
+        }
+        engine.onApproval(checkpoint::recordApproval);
+        return checkpoint;
+    }
+
+    /**
+     * Removes the checkpoint of a run that has finished, so that the next run starts from the beginning.
+     */
+    static void delete(Path directory) throws IOException {
+        Files.deleteIfExists(directory.resolve(MANIFEST));
+        Files.deleteIfExists(directory.resolve(TRANSACTION_IDS));
+        Files.deleteIfExists(directory.resolve(APPROVALS));
+        Files.deleteIfExists(directory.resolve(BALANCES));
+    }
+
+    boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * Offset in the transactions file to continue reading from, 0 when not resumed.
+     */
+    long getInputOffset() {
+        return inputOffset;
+    }
+
+    /**
+     * Size events.csv is to be cut back to before appending, 0 when not resumed.
+     */
+    long getEventsPosition() {
+        return eventsPosition;
+    }
+
+    /**
+     * Takes a checkpoint. Everything before {@code inputOffset} must be processed and its events synced, with
+     * events.csv ending at {@code eventsPosition}.
+     */
+    void save(long inputOffset, long eventsPosition) throws IOException {
+        flushApprovals();
+        transactionIds.writeLog(transactionIdsLogged, transactionIdLog);
+        transactionIdsLogged = transactionIds.logEnd();
+        transactionIdLog.force(false);
+        approvalLog.force(false);
+        saveBalances();
+        long balanceJournalLength = balanceJournal != null ? balanceJournal.sync() : 0;
+
+        manifest.clear();
+        manifest.putInt(MAGIC).putInt(VERSION).put(sources.duplicate()).putLong(inputOffset).putLong(eventsPosition)
+                .putLong(transactionIdLog.size()).putLong(approvalLog.size()).putLong(balanceLog.size())
+                .putLong(balanceJournalLength).putInt(users.size());
+        CRC32 crc = new CRC32();
+        crc.update(manifest.array(), 0, manifest.position());
+        manifest.putLong(crc.getValue()).flip();
+
+        Path temporary = Files.createTempFile(directory, MANIFEST, ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                while (manifest.hasRemaining()) {
+                    channel.write(manifest);
+                }
+                channel.force(false);
+            }
+            Files.move(temporary, directory.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (balanceLog; approvalLog) {
+            transactionIdLog.close();
+        }
+    }
+
+    private static FileChannel openJournal(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // Appends the balances of the users changed since the previous checkpoint
+    private void saveBalances() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.min(BUFFER_SIZE, changedUsers.cardinality() * BALANCE_SIZE));
+        for (int index = changedUsers.nextSetBit(0); index >= 0; index = changedUsers.nextSetBit(index + 1)) {
+            if (!buffer.hasRemaining()) {
+                writeFully(buffer.flip(), balanceLog);
+                buffer.clear();
+            }
+            User user = users.get(index);
+            buffer.putInt(index).putLong(user.getBalance()).putInt(user.getBalanceScale());
+        }
+        writeFully(buffer.flip(), balanceLog);
+        balanceLog.force(false);
+        changedUsers.clear();
+    }
+
+    private static void writeFully(ByteBuffer buffer, FileChannel channel) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void recordApproval(Transaction transaction) {
+        changedUsers.set(users.indexOf(transaction.getUserId()));
+        Dictionaries dictionaries = users.getDictionaries();
+        StringDictionary codes = dictionaries.getCodes();
+        int size = 4 * Short.BYTES + dictionaries.getUserIds().length(transaction.getUserId())
+                + codes.length(transaction.getType()) + codes.length(transaction.getMethod())
+                + dictionaries.getAccounts().length(transaction.getAccountNumber());
+        if (approvals.remaining() < size) {
+            try {
+                flushApprovals();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not journal approved transaction", e);
+            }
+        }
+        putString(dictionaries.getUserIds(), transaction.getUserId());
+        putString(codes, transaction.getType());
+        putString(codes, transaction.getMethod());
+        putString(dictionaries.getAccounts(), transaction.getAccountNumber());
+    }
+
+    private void putString(StringDictionary dictionary, int id) {
+        approvals.putShort((short) dictionary.length(id));
+        dictionary.copyTo(id, approvals);
+    }
+
+    private void flushApprovals() throws IOException {
+        writeFully(approvals.flip(), approvalLog);
+        approvals.clear();
+    }
+
+    private void restore(Path events, TransactionEngine engine) throws IOException {
+        ByteBuffer header = readManifest(events);
+        if (header == null) {
+            transactionIdLog.truncate(0);
+            approvalLog.truncate(0);
+            balanceLog.truncate(0);
+            if (balanceJournal != null) {
+                balanceJournal.start();
+            }
+            return;
+        }
+        inputOffset = header.getLong();
+        eventsPosition = header.getLong();
+        long transactionIdsLength = header.getLong();
+        long approvalsLength = header.getLong();
+        long balancesLength = header.getLong();
+        long balanceJournalLength = header.getLong();
+
+        // Drop whatever was journaled after the checkpoint
+        transactionIdLog.truncate(transactionIdsLength);
+        approvalLog.truncate(approvalsLength);
+        balanceLog.truncate(balancesLength);
+        restoreBalances();
+        replay(transactionIdLog, 1, transactionIds::addLogged);
+        transactionIdsLogged = transactionIds.logEnd();
+        Dictionaries dictionaries = users.getDictionaries();
+        replay(approvalLog, 4, entries -> {
+            while (entries.hasRemaining()) {
+                // Approved accounts are claimed again right away, so they can be interned
+                int userId = internString(entries, dictionaries.getUserIds());
+                int type = internString(entries, dictionaries.getCodes());
+                int method = internString(entries, dictionaries.getCodes());
+                int accountNumber = internString(entries, dictionaries.getAccounts());
+                engine.restoreApproval(new Transaction(null, userId, type, 0, 0, method, accountNumber, null));
+            }
+        });
+        transactionIdLog.position(transactionIdsLength);
+        approvalLog.position(approvalsLength);
+        balanceLog.position(balancesLength);
+        if (balanceJournal != null) {
+            balanceJournal.resume(balanceJournalLength);
+        }
+        resumed = true;
+    }
+
+    // The users start with the balances of users.csv, later entries overwrite earlier ones
+    private void restoreBalances() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE / BALANCE_SIZE * BALANCE_SIZE);
+        for (long position = 0; position < balanceLog.size(); position += buffer.limit()) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), balanceLog.size() - position));
+            while (buffer.hasRemaining()) {
+                if (balanceLog.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Truncated checkpoint balances");
+                }
+            }
+            buffer.flip();
+            while (buffer.remaining() >= BALANCE_SIZE) {
+                int index = buffer.getInt();
+                if (index < 0 || index >= users.size()) {
+                    throw new IOException("Checkpoint balance of unknown user " + index);
+                }
+                User user = users.get(index);
+                user.setBalance(buffer.getLong());
+                user.setBalanceScale(buffer.getInt());
+            }
+        }
+    }
+
+    /**
+     * The manifest positioned after the source fields, or null when there is no checkpoint to resume from.
+     */
+    private ByteBuffer readManifest(Path events) throws IOException {
+        Path path = directory.resolve(MANIFEST);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (file.limit() != MANIFEST_SIZE || file.getInt() != MAGIC || file.getInt() != VERSION) {
+            System.err.println("Ignoring unreadable checkpoint " + path);
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(file.array(), 0, file.limit() - Long.BYTES);
+        if (crc.getValue() != file.getLong(file.limit() - Long.BYTES)) {
+            System.err.println("Ignoring corrupt checkpoint " + path);
+            return null;
+        }
+        if (!file.slice(file.position(), SOURCES_SIZE).equals(sources)
+                || file.getInt(MANIFEST_SIZE - Long.BYTES - Integer.BYTES) != users.size()) {
+            System.err.println("Ignoring checkpoint " + path + " taken for other input files");
+            return null;
+        }
+        file.position(file.position() + SOURCES_SIZE);
+        long eventsPosition = file.getLong(file.position() + Long.BYTES);
+        long transactionIdsLength = file.getLong(file.position() + 2 * Long.BYTES);
+        long approvalsLength = file.getLong(file.position() + 3 * Long.BYTES);
+        long balancesLength = file.getLong(file.position() + 4 * Long.BYTES);
+        if (!Files.exists(events) || Files.size(events) < eventsPosition
+                || transactionIdLog.size() < transactionIdsLength || approvalLog.size() < approvalsLength
+                || balanceLog.size() < balancesLength || balancesLength % BALANCE_SIZE != 0) {
+            System.err.println("Ignoring checkpoint " + path + ", its events or journals are missing");
+            return null;
+        }
+        return file;
+    }
+
+    private interface EntryHandler {
+        void accept(ByteBuffer entries);
+    }
+
+    // Hands the journal to the handler in buffers holding whole entries of the given number of strings
+    private static void replay(FileChannel journal, int strings, EntryHandler handler) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long position = 0;
+        while (position < journal.size() || buffer.position() > 0) {
+            int read = journal.read(buffer, position);
+            if (read > 0) {
+                position += read;
+            }
+            buffer.flip();
+            int complete = completeEntries(buffer, strings);
+            if (complete == 0 && read <= 0) {
+                throw new IOException("Truncated entry in checkpoint journal");
+            }
+            handler.accept(buffer.slice(0, complete));
+            buffer.position(complete);
+            buffer.compact();
+        }
+    }
+
+    // Length of the whole entries at the start of the buffer
+    private static int completeEntries(ByteBuffer buffer, int strings) {
+        int complete = 0;
+        int next = 0;
+        while (true) {
+            for (int i = 0; i < strings; i++) {
+                if (next + Short.BYTES > buffer.limit()) {
+                    return complete;
+                }
+                next += Short.BYTES + (buffer.getShort(next) & 0xFFFF);
+            }
+            if (next > buffer.limit()) {
+                return complete;
+            }
+            complete = next;
+        }
+    }
+
+    private static int internString(ByteBuffer entries, StringDictionary dictionary) {
+        int length = entries.getShort() & 0xFFFF;
+        int id = dictionary.intern(entries, entries.position(), entries.position() + length);
+        entries.position(entries.position() + length);
+        return id;
+    }
+}
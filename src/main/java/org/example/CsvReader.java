@@ -0,0 +1,154 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads simplified CSV files (no quoting or escaping) by scanning a memory-mapped view of the file.
+ * <p>
+ * The file is mapped in windows so inputs larger than 2 GB work too; a line cut by the end of a window is picked up
+ * again from its start by the next one. The header line is skipped, lines with an unexpected number of fields are
+ * ignored and rows the mapper cannot parse are reported and skipped, as the {@code BufferedReader} readers did.
+ */
+final class CsvReader {
+
+    private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    interface RecordMapper<T> {
+        T map(CsvRecord record);
+    }
+
+    interface RecordConsumer<T> {
+        void accept(T value) throws IOException;
+    }
+
+    interface LineEndListener {
+        /**
+         * Called after each line has been handed over, with the file offset where the next line starts.
+         */
+        void lineEnded(long offset) throws IOException;
+    }
+
+    private CsvReader() {
+    }
+
+    static <T> void read(Path path, int fieldCount, RecordMapper<T> mapper, RecordConsumer<? super T> consumer)
+            throws IOException {
+        read(path, 0, fieldCount, mapper, consumer, null);
+    }
+
+    /**
+     * Reads from {@code from}, which is either 0 or an offset reported to {@code lineEnds} by an earlier read (in
+     * which case there is no header to skip).
+     */
+    static <T> void read(Path path, long from, int fieldCount, RecordMapper<T> mapper,
+                         RecordConsumer<? super T> consumer, LineEndListener lineEnds) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            CsvRecord record = new CsvRecord();
+            boolean header = from == 0;
+            long size = channel.size();
+            long position = from;
+            while (position < size) {
+                int length = (int) Math.min(WINDOW_SIZE, size - position);
+                boolean lastWindow = position + length == size;
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+                int lineStart = 0;
+                while (lineStart < length) {
+                    int lineEnd = indexOfNewLine(buffer, lineStart, length);
+                    if (lineEnd < 0) {
+                        if (!lastWindow) {
+                            break;
+                        }
+                        lineEnd = length;
+                    }
+                    if (header) {
+                        header = false;
+                    } else {
+                        accept(record, buffer, lineStart, lineEnd, fieldCount, mapper, consumer);
+                        if (lineEnds != null) {
+                            lineEnds.lineEnded(Math.min(position + lineEnd + 1, size));
+                        }
+                    }
+                    lineStart = lineEnd + 1;
+                }
+                if (lineStart == 0) {
+                    throw new IOException("Line longer than " + WINDOW_SIZE + " bytes at offset " + position + " in " + path);
+                }
+                position = lastWindow ? size : position + lineStart;
+            }
+        }
+    }
+
+    /**
+     * Reads the same format from a stream, such as a socket, handing each record over as soon as its line is
+     * complete. Lines may be at most {@value #STREAM_BUFFER_SIZE} bytes long.
+     */
+    static <T> void read(InputStream in, int fieldCount, RecordMapper<T> mapper, RecordConsumer<? super T> consumer)
+            throws IOException {
+        CsvRecord record = new CsvRecord();
+        byte[] bytes = new byte[STREAM_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        boolean header = true;
+        int filled = 0;
+        int read;
+        while ((read = in.read(bytes, filled, bytes.length - filled)) >= 0) {
+            int lineStart = 0;
+            for (int i = filled; i < filled + read; i++) {
+                if (bytes[i] == '\n') {
+                    if (header) {
+                        header = false;
+                    } else {
+                        accept(record, buffer, lineStart, i, fieldCount, mapper, consumer);
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            filled += read;
+            if (lineStart == 0 && filled == bytes.length) {
+                throw new IOException("Line longer than " + STREAM_BUFFER_SIZE + " bytes");
+            }
+            // Keep the unfinished line at the start of the buffer
+            System.arraycopy(bytes, lineStart, bytes, 0, filled - lineStart);
+            filled -= lineStart;
+        }
+        if (filled > 0 && !header) {
+            accept(record, buffer, 0, filled, fieldCount, mapper, consumer);
+        }
+    }
+
+    private static <T> void accept(CsvRecord record, ByteBuffer buffer, int lineStart, int lineEnd, int fieldCount,
+                                   RecordMapper<T> mapper, RecordConsumer<? super T> consumer) throws IOException {
+        record.reset(buffer, lineStart, lineEnd);
+        if (record.getFieldCount() == fieldCount) {
+            T value = map(mapper, record);
+            if (value != null) {
+                consumer.accept(value);
+            }
+        }
+    }
+
+    private static <T> T map(RecordMapper<T> mapper, CsvRecord record) {
+        try {
+            return mapper.map(record);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static int indexOfNewLine(MappedByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,258 @@
+package org.example;
+
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * One CSV line viewed in place over the mapped file. Fields are only located by their byte offsets;
+ * numbers are parsed straight from the bytes and a {@code String} is created only when a mapper asks for one.
+ * The instance is reused for every line, so mappers must not keep a reference to it.
+ */
+final class CsvRecord {
+
+    private ByteBuffer buffer;
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int fieldCount;
+    private byte[] bytes = new byte[64];
+
+    /**
+     * Splits {@code [start, end)} of the buffer on commas. Trailing empty fields are dropped the same way
+     * {@code String.split(",")} drops them, so line validation behaves as it did with the split based readers.
+     */
+    void reset(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        fieldCount = 0;
+        int fieldStart = start;
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == ',') {
+                addField(fieldStart, i);
+                fieldStart = i + 1;
+            }
+        }
+        addField(fieldStart, end);
+        if (end > start) {
+            while (fieldCount > 0 && starts[fieldCount - 1] == ends[fieldCount - 1]) {
+                fieldCount--;
+            }
+        }
+    }
+
+    int getFieldCount() {
+        return fieldCount;
+    }
+
+    String getString(int field) {
+        int length = length(field);
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+        buffer.get(starts[field], bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The field's id in the dictionary, interning it straight from the buffer when it is new.
+     */
+    int intern(int field, StringDictionary dictionary) {
+        return dictionary.intern(buffer, starts[field], ends[field]);
+    }
+
+    /**
+     * The field's id in the dictionary, or {@link StringDictionary#NOT_FOUND} when it is not in there. Adds nothing.
+     */
+    int find(int field, StringDictionary dictionary) {
+        return dictionary.find(buffer, starts[field], ends[field]);
+    }
+
+    long getLong(int field) {
+        int position = starts[field];
+        int end = ends[field];
+        boolean negative = false;
+        if (position < end && (buffer.get(position) == '-' || buffer.get(position) == '+')) {
+            negative = buffer.get(position) == '-';
+            position++;
+        }
+        if (position == end) {
+            throw numberFormatException(field);
+        }
+        long value = 0;
+        for (; position < end; position++) {
+            int digit = buffer.get(position) - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                throw numberFormatException(field);
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    int getInt(int field) {
+        long value = getLong(field);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw numberFormatException(field);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Parses a decimal such as {@code 12.5} or {@code 1.25E+1} into {@link Money} minor units. Values with more
+     * fraction digits than {@link Money#SCALE}, other than trailing zeros, and values that do not fit a {@code long}
+     * are rejected.
+     */
+    long getMoney(int field) {
+        return getMoney(field, RoundingMode.UNNECESSARY);
+    }
+
+    /**
+     * Like {@link #getMoney(int)}, but fraction digits past {@link Money#SCALE} are rounded off in the given
+     * direction, {@link RoundingMode#FLOOR} or {@link RoundingMode#CEILING}, instead of being rejected.
+     */
+    long getMoney(int field, RoundingMode rounding) {
+        int start = starts[field];
+        int end = ends[field];
+        boolean negative = false;
+        if (start < end && (buffer.get(start) == '-' || buffer.get(start) == '+')) {
+            negative = buffer.get(start) == '-';
+            start++;
+        }
+        // First pass: digit count, fraction digits and exponent
+        int digits = 0;
+        int fractionDigits = -1;
+        int position = start;
+        for (; position < end; position++) {
+            byte b = buffer.get(position);
+            if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else if (b >= '0' && b <= '9') {
+                digits++;
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else {
+                break;
+            }
+        }
+        int mantissaEnd = position;
+        long exponent = 0;
+        if (position < end && (buffer.get(position) == 'e' || buffer.get(position) == 'E')) {
+            exponent = getExponent(field, position + 1, end);
+        } else if (position < end) {
+            throw numberFormatException(field);
+        }
+        if (digits == 0) {
+            throw numberFormatException(field);
+        }
+
+        // Digits whose place value is at least one minor unit are kept, the rest are rounded off
+        long shift = Money.SCALE - Math.max(fractionDigits, 0) + exponent;
+        long kept = Math.max(0, Math.min(digits, digits + shift));
+        long value = 0;
+        boolean inexact = false;
+        int digit = 0;
+        for (position = start; position < mantissaEnd; position++) {
+            byte b = buffer.get(position);
+            if (b == '.') {
+                continue;
+            }
+            if (digit++ < kept) {
+                if (value > (Long.MAX_VALUE - (b - '0')) / 10) {
+                    throw numberFormatException(field);
+                }
+                value = value * 10 + (b - '0');
+            } else if (b != '0') {
+                inexact = true;
+            }
+        }
+        for (long scale = 0; scale < shift && value != 0; scale++) {
+            if (value > Long.MAX_VALUE / 10) {
+                throw numberFormatException(field);
+            }
+            value *= 10;
+        }
+        if (inexact) {
+            if (rounding == RoundingMode.UNNECESSARY) {
+                throw numberFormatException(field);
+            } else if (rounding != RoundingMode.FLOOR && rounding != RoundingMode.CEILING) {
+                throw new IllegalArgumentException("Unsupported rounding " + rounding);
+            }
+            // Away from zero when rounding towards the value's sign, otherwise the truncated value already is it
+            if ((rounding == RoundingMode.FLOOR) == negative) {
+                if (value == Long.MAX_VALUE) {
+                    throw numberFormatException(field);
+                }
+                value++;
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Number of fraction digits a decimal field is written with, which is the scale {@code BigDecimal} would give it,
+     * limited to {@code 0..}{@link Money#SCALE}: values with an exponent or more fraction digits are printed as
+     * plain decimals with at most that many.
+     */
+    int getScale(int field) {
+        int end = ends[field];
+        long exponent = 0;
+        for (int i = starts[field]; i < end; i++) {
+            if (buffer.get(i) == 'e' || buffer.get(i) == 'E') {
+                exponent = getExponent(field, i + 1, end);
+                end = i;
+                break;
+            }
+        }
+        int fractionDigits = 0;
+        for (int i = starts[field]; i < end; i++) {
+            if (buffer.get(i) == '.') {
+                fractionDigits = end - i - 1;
+                break;
+            }
+        }
+        return (int) Math.max(0, Math.min(Money.SCALE, fractionDigits - exponent));
+    }
+
+    // Saturates far past any exponent a long amount could have, so huge ones still read as under- or overflow
+    private long getExponent(int field, int position, int end) {
+        boolean negative = false;
+        if (position < end && (buffer.get(position) == '-' || buffer.get(position) == '+')) {
+            negative = buffer.get(position) == '-';
+            position++;
+        }
+        if (position == end) {
+            throw numberFormatException(field);
+        }
+        long exponent = 0;
+        for (; position < end; position++) {
+            int digit = buffer.get(position) - '0';
+            if (digit < 0 || digit > 9) {
+                throw numberFormatException(field);
+            }
+            exponent = Math.min(exponent * 10 + digit, 1_000_000);
+        }
+        return negative ? -exponent : exponent;
+    }
+
+    private int length(int field) {
+        return ends[field] - starts[field];
+    }
+
+    private void addField(int start, int end) {
+        if (fieldCount == starts.length) {
+            starts = Arrays.copyOf(starts, fieldCount * 2);
+            ends = Arrays.copyOf(ends, fieldCount * 2);
+        }
+        starts[fieldCount] = start;
+        ends[fieldCount] = end;
+        fieldCount++;
+    }
+
+    private NumberFormatException numberFormatException(int field) {
+        return new NumberFormatException("For input string: \"" + getString(field) + "\"");
+    }
+}
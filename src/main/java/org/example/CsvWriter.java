@@ -0,0 +1,307 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes simplified CSV files by encoding text and numbers as UTF-8 straight into a reusable byte buffer, which is
+ * written to a {@link FileChannel} whenever it fills up.
+ * <p>
+ * In background mode full buffers are handed to a writer thread through a bounded queue and the caller continues
+ * with an empty one from a small pool, so file I/O overlaps with producing the next rows; when the writer falls
+ * behind, the caller blocks on the pool instead of buffering without limit. Not thread-safe, one producer only.
+ */
+final class CsvWriter implements Closeable, Appendable {
+
+    static final int BUFFER_SIZE = 1 << 20;
+    private static final int BACKGROUND_BUFFERS = 4;
+    // Sign and digits of Long.MIN_VALUE
+    private static final int MAX_NUMBER_LENGTH = 20;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final FileChannel channel;
+    private final BlockingQueue<ByteBuffer> filled;
+    private final BlockingQueue<ByteBuffer> free;
+    private final Thread writer;
+    private final byte[] digits = new byte[MAX_NUMBER_LENGTH];
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private volatile Throwable failure;
+
+    private CsvWriter(Path path, long position, boolean background) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(position);
+        channel.position(position);
+        if (background) {
+            filled = new ArrayBlockingQueue<>(BACKGROUND_BUFFERS);
+            free = new ArrayBlockingQueue<>(BACKGROUND_BUFFERS);
+            for (int i = 1; i < BACKGROUND_BUFFERS; i++) {
+                free.add(ByteBuffer.allocate(BUFFER_SIZE));
+            }
+            writer = new Thread(this::writeFilled, "csv-writer-" + path.getFileName());
+            writer.start();
+        } else {
+            filled = null;
+            free = null;
+            writer = null;
+        }
+    }
+
+    static CsvWriter open(Path path) throws IOException {
+        return new CsvWriter(path, 0, false);
+    }
+
+    static CsvWriter open(Path path, boolean background) throws IOException {
+        return new CsvWriter(path, 0, background);
+    }
+
+    /**
+     * Continues a file at {@code position}, dropping anything after it, e.g. to resume from a checkpoint.
+     */
+    static CsvWriter openAt(Path path, long position, boolean background) throws IOException {
+        return new CsvWriter(path, position, background);
+    }
+
+    @Override
+    public CsvWriter append(CharSequence text) throws IOException {
+        int length = text.length();
+        // Every char takes at most 3 bytes (a surrogate pair 4 for 2 chars), so the loop below needs no bounds checks
+        if (buffer.remaining() < length * 3) {
+            flush();
+            if (buffer.remaining() < length * 3) {
+                // Longer than a whole buffer: written in pieces that do not split a surrogate pair
+                int piece = buffer.remaining() / 3;
+                for (int start = 0; start < length; ) {
+                    int end = Math.min(start + piece, length);
+                    if (end < length && Character.isHighSurrogate(text.charAt(end - 1))) {
+                        end--;
+                    }
+                    append(text.subSequence(start, end));
+                    start = end;
+                }
+                return this;
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else {
+                encode(text, i, c);
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    i++;
+                }
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public CsvWriter append(CharSequence text, int start, int end) throws IOException {
+        return append(text.subSequence(start, end));
+    }
+
+    @Override
+    public CsvWriter append(char c) throws IOException {
+        ensureRemaining(4);
+        if (c < 0x80) {
+            buffer.put((byte) c);
+        } else {
+            // A single char cannot hold a whole surrogate pair, pairs only come through append(CharSequence)
+            encode(String.valueOf(c), 0, c);
+        }
+        return this;
+    }
+
+    CsvWriter append(long value) throws IOException {
+        ensureRemaining(MAX_NUMBER_LENGTH);
+        if (value == Long.MIN_VALUE) {
+            return append(Long.toString(value));
+        }
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int start = digits.length;
+        do {
+            digits[--start] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        buffer.put(digits, start, digits.length - start);
+        return this;
+    }
+
+    /**
+     * Offset in the file of the next byte appended. Not available in background mode.
+     */
+    long position() throws IOException {
+        if (writer != null) {
+            throw new IllegalStateException("The position is not tracked in background mode");
+        }
+        return channel.position() + buffer.position();
+    }
+
+    /**
+     * Copies {@code count} bytes of another file from {@code position} as they are, e.g. the rows of an earlier
+     * version of this file that did not change. The copy is made by the OS without passing through the buffer.
+     * Not available in background mode.
+     */
+    CsvWriter appendFrom(FileChannel source, long position, long count) throws IOException {
+        if (writer != null) {
+            throw new IllegalStateException("Copying from a file is not supported in background mode");
+        }
+        flush();
+        while (count > 0) {
+            long copied = source.transferTo(position, count, channel);
+            if (copied <= 0) {
+                throw new IOException("Unexpected end of file at offset " + position);
+            }
+            position += copied;
+            count -= copied;
+        }
+        return this;
+    }
+
+    /**
+     * Writes out everything appended so far. In background mode this only queues it for the writer thread.
+     */
+    void flush() throws IOException {
+        rethrowFailure();
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        if (writer == null) {
+            writeFully(buffer);
+            buffer.clear();
+        } else {
+            put(filled, buffer);
+            buffer = take(free);
+        }
+    }
+
+    /**
+     * Writes out everything appended so far, waits until it is on disk and returns the file size.
+     */
+    long sync() throws IOException {
+        flush();
+        if (writer != null) {
+            // All buffers but the one in use are back in the pool once the writer thread is idle
+            while (free.size() < BACKGROUND_BUFFERS - 1 && failure == null) {
+                LockSupport.parkNanos(10_000);
+            }
+            rethrowFailure();
+        }
+        channel.force(false);
+        return channel.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            try {
+                if (writer != null) {
+                    put(filled, END);
+                    try {
+                        writer.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the CSV writer", e);
+                    }
+                }
+            } finally {
+                channel.close();
+            }
+        }
+        rethrowFailure();
+    }
+
+    private void ensureRemaining(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void encode(CharSequence text, int index, char c) {
+        if (c < 0x800) {
+            buffer.put((byte) (0xC0 | c >> 6));
+            buffer.put((byte) (0x80 | c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && index + 1 < text.length()
+                && Character.isLowSurrogate(text.charAt(index + 1))) {
+            int codePoint = Character.toCodePoint(c, text.charAt(index + 1));
+            buffer.put((byte) (0xF0 | codePoint >> 18));
+            buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+            buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+            buffer.put((byte) (0x80 | codePoint & 0x3F));
+        } else if (Character.isSurrogate(c)) {
+            // Unpaired surrogate, replaced like the JDK encoder does
+            buffer.put((byte) '?');
+        } else {
+            buffer.put((byte) (0xE0 | c >> 12));
+            buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+            buffer.put((byte) (0x80 | c & 0x3F));
+        }
+    }
+
+    private void writeFilled() {
+        try {
+            ByteBuffer next;
+            while ((next = filled.take()) != END) {
+                // Keep recycling after a failure so that the producer never blocks on an empty pool
+                if (failure == null) {
+                    try {
+                        writeFully(next);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                next.clear();
+                free.put(next);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+        }
+    }
+
+    private void writeFully(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+
+    private void rethrowFailure() throws IOException {
+        Throwable e = failure;
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e != null) {
+            throw new IOException("Writing CSV failed", e);
+        }
+    }
+
+    private static void put(BlockingQueue<ByteBuffer> queue, ByteBuffer value) throws IOException {
+        try {
+            queue.put(value);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing CSV output", e);
+        }
+    }
+
+    private static ByteBuffer take(BlockingQueue<ByteBuffer> queue) throws IOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a CSV buffer", e);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.example;
+
+import java.util.Arrays;
+
+/**
+ * Payment accounts each user has successfully deposited with, grouped by payment method.
+ * <p>
+ * User and account are {@link Dictionaries} ids packed into one {@code long} key of a per-method
+ * {@link LongHashSet}, so recording a deposit or authorizing a withdrawal allocates nothing.
+ */
+final class DepositAccountIndex {
+
+    // Indexed by payment method id
+    private LongHashSet[] accountsByMethod = new LongHashSet[4];
+
+    void recordDeposit(int userId, int method, int accountNumber) {
+        if (method >= accountsByMethod.length) {
+            accountsByMethod = Arrays.copyOf(accountsByMethod, Math.max(method + 1, accountsByMethod.length * 2));
+        }
+        if (accountsByMethod[method] == null) {
+            accountsByMethod[method] = new LongHashSet();
+        }
+        accountsByMethod[method].add(key(userId, accountNumber));
+    }
+
+    /**
+     * An account without an id has never been claimed, so nobody has deposited with it.
+     */
+    boolean hasDeposited(int userId, int method, int accountNumber) {
+        return accountNumber != StringDictionary.NOT_FOUND && method < accountsByMethod.length
+                && accountsByMethod[method] != null
+                && accountsByMethod[method].contains(key(userId, accountNumber));
+    }
+
+    private static long key(int userId, int accountNumber) {
+        return (long) userId << 32 | accountNumber & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,53 @@
+package org.example;
+
+/**
+ * The dictionaries one run interns user IDs, payment accounts, countries and codes into, so that ids from
+ * different files (users, BIN table, any number of transaction feeds) can be compared with {@code ==}. Users and
+ * BIN table of a run are read into the same instance as its transactions.
+ * <p>
+ * Only what the run keeps state for is interned: user IDs and countries come from the reference tables, and an
+ * account gets an id once an approved transaction claims it. Transactions look their user ID and account up
+ * without adding to the dictionaries, so a long-running service fed unknown users and one-off accounts does not
+ * grow them. Transaction types and payment methods are interned as read: the rules compare them by id and ignoring
+ * case, and they are a handful of codes.
+ */
+final class Dictionaries {
+
+    // Ids of the codes every instance starts with
+    static final int DEPOSIT = 0;
+    static final int WITHDRAWAL = 1;
+    static final int CARD = 2;
+    static final int TRANSFER = 3;
+    static final int DEBIT_CARD = 4;
+
+    private final StringDictionary userIds = new StringDictionary();
+    private final StringDictionary accounts = new StringDictionary();
+    private final StringDictionary countries = new StringDictionary();
+    // Transaction types, payment methods and card types
+    private final StringDictionary codes = new StringDictionary();
+
+    Dictionaries() {
+        // Dense ids in interning order, matching the constants
+        codes.intern("DEPOSIT");
+        codes.intern("WITHDRAWAL");
+        codes.intern("CARD");
+        codes.intern("TRANSFER");
+        codes.intern("DC");
+    }
+
+    StringDictionary getUserIds() {
+        return userIds;
+    }
+
+    StringDictionary getAccounts() {
+        return accounts;
+    }
+
+    StringDictionary getCountries() {
+        return countries;
+    }
+
+    StringDictionary getCodes() {
+        return codes;
+    }
+}
@@ -0,0 +1,71 @@
+package org.example;
+
+/**
+ * ISO 13616 mod-97 IBAN check that reads the account number in place.
+ * <p>
+ * The first four characters are moved to the end by reading from offset 4 and wrapping around instead of building
+ * a rotated copy. Each character advances the running remainder through one lookup in {@link #NEXT_REMAINDER},
+ * which already folds in the letter-to-number conversion and the modulo, so a check is at most
+ * {@value #MAX_SIZE} array reads with no allocation and no division.
+ * <p>
+ * ASCII characters are converted exactly as the original check did: letters by {@code c - 'A' + 10}, which also
+ * turns ':' to '@' into 3 to 9. Non-ASCII characters are rejected, including the Unicode decimal digits the original
+ * check accepted: a claimed account number is read back from its dictionary one char per UTF-8 byte (see
+ * {@link StringDictionary#newView()}), so such a digit would pass the first time the account is used and fail every
+ * time after.
+ */
+final class IbanValidator {
+
+    static final int MIN_SIZE = 15;
+    static final int MAX_SIZE = 34;
+
+    private static final int MODULUS = 97;
+    private static final int ASCII = 128;
+    private static final byte INVALID = -1;
+
+    // NEXT_REMAINDER[remainder * ASCII + c]: remainder after appending character c, or INVALID
+    private static final byte[] NEXT_REMAINDER = new byte[MODULUS * ASCII];
+
+    static {
+        for (int remainder = 0; remainder < MODULUS; remainder++) {
+            for (int c = 0; c < ASCII; c++) {
+                int value = c >= '0' && c <= '9' ? c - '0' : c >= ':' && c <= 'Z' ? c - 'A' + 10 : -1;
+                NEXT_REMAINDER[remainder * ASCII + c] = value < 0
+                        ? INVALID
+                        : (byte) ((remainder * (value > 9 ? 100 : 10) + value) % MODULUS);
+            }
+        }
+    }
+
+    private IbanValidator() {
+    }
+
+    static boolean isValid(CharSequence accountNumber) {
+        // Same bounds as String.trim(), without the copy
+        int start = 0;
+        int end = accountNumber.length();
+        while (start < end && accountNumber.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && accountNumber.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        int length = end - start;
+        if (length < MIN_SIZE || length > MAX_SIZE) {
+            return false;
+        }
+
+        int remainder = 0;
+        for (int i = 4; i < length + 4; i++) {
+            char c = accountNumber.charAt(start + (i < length ? i : i - length));
+            if (c >= ASCII) {
+                return false;
+            }
+            remainder = NEXT_REMAINDER[remainder * ASCII + c];
+            if (remainder == INVALID) {
+                return false;
+            }
+        }
+        return remainder == 1;
+    }
+}
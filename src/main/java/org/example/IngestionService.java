@@ -0,0 +1,293 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-running mode: validates any number of transaction feeds at the same time against one set of users and
+ * account state, writing all their events to one events file.
+ * <p>
+ * Every feed (a CSV file dropped into a watched directory or a connection on a local port) is read on its own
+ * virtual thread, so a slow or idle feed costs nothing but its buffer. Feeds hand their transactions to a single
+ * validation thread through a bounded queue: the engine stays single-threaded and, when validation falls behind,
+ * feeds block on the queue instead of buffering, which for sockets pushes back on the sender through TCP flow
+ * control. Within a feed transactions keep their order; between feeds they are validated in arrival order.
+ * <p>
+ * Files are only picked up once they have a {@code .csv} name, so producers should write under another name and
+ * rename when done. A finished file is moved into a {@code processed} subdirectory, one that fails partway into a
+ * {@code failed} subdirectory: some of its events are already written, so reading it again would repeat them.
+ */
+final class IngestionService implements AutoCloseable {
+
+    private static final int QUEUE_CAPACITY = 16 * 1024;
+    private static final Transaction END = new Transaction(null, -1, -1, 0, 0, -1, -1, null);
+    static final String PROCESSED_DIRECTORY = "processed";
+    static final String FAILED_DIRECTORY = "failed";
+
+    private final TransactionEngine engine;
+    private final CsvWriter events;
+    private final PipelineMetrics metrics;
+    private final PipelineMetrics.Recorder writeRecorder;
+    private final BlockingQueue<Transaction> pending = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ExecutorService feeds = Executors.newVirtualThreadPerTaskExecutor();
+    // Listeners and open connections, closed on shutdown so their blocked threads return
+    private final Set<Closeable> resources = ConcurrentHashMap.newKeySet();
+    private final Set<Path> activeFiles = ConcurrentHashMap.newKeySet();
+    private final Thread validator;
+    private volatile boolean closed;
+    private volatile Throwable failure;
+
+    IngestionService(TransactionEngine engine, CsvWriter events, PipelineMetrics metrics) {
+        this.engine = engine;
+        this.events = events;
+        this.metrics = metrics;
+        this.writeRecorder = metrics.newRecorder();
+        validator = new Thread(this::validate, "ingestion-validator");
+        validator.start();
+    }
+
+    /**
+     * Ingests every {@code .csv} file already in the directory and every one that appears there later.
+     */
+    void watch(Path directory) throws IOException {
+        Files.createDirectories(directory.resolve(PROCESSED_DIRECTORY));
+        Files.createDirectories(directory.resolve(FAILED_DIRECTORY));
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        resources.add(watcher);
+        directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+        // Registered before listing, so a file dropped in between is seen at least once
+        ingestDirectory(directory);
+        feeds.execute(() -> watchDirectory(directory, watcher));
+    }
+
+    /**
+     * Accepts connections on the loopback interface, each sending a header line followed by transactions, and
+     * returns the port listened on (useful when asking for port 0).
+     */
+    int listen(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        resources.add(server);
+        feeds.execute(() -> acceptConnections(server));
+        return server.getLocalPort();
+    }
+
+    /**
+     * Reads one feed to its end on a virtual thread and closes it.
+     */
+    void ingest(String name, InputStream in) {
+        feeds.execute(() -> readFeed(name, in));
+    }
+
+    /**
+     * Stops accepting feeds, lets the ones in progress end, validates everything already queued and flushes the
+     * events. Open connections are cut, so a feed's last transactions may not have arrived.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (Closeable resource : resources) {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        feeds.shutdown();
+        try {
+            feeds.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            pending.put(END);
+            validator.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while stopping the ingestion service", e);
+        }
+        events.flush();
+        Throwable e = failure;
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e != null) {
+            throw new IOException("Transaction processing failed", e);
+        }
+    }
+
+    // One per feed, each feed records its own READ samples
+    private CsvReader.RecordMapper<Transaction> newMapper() {
+        return TransactionProcessor.transactionMapper(engine.getDictionaries(), metrics.newRecorder());
+    }
+
+    private void readFeed(String name, InputStream in) {
+        try (in) {
+            CsvReader.read(in, 6, newMapper(), this::submit);
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Feed " + name + " failed: " + e);
+            }
+        }
+    }
+
+    private void submit(Transaction transaction) throws IOException {
+        if (failure != null) {
+            throw new IOException("Validation stopped after a failure", failure);
+        }
+        try {
+            pending.put(transaction);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing transaction", e);
+        }
+    }
+
+    private void validate() {
+        try {
+            Transaction transaction;
+            while ((transaction = pending.take()) != END) {
+                // After a failure keep draining, so that feeds blocked on the queue can finish
+                if (failure != null) {
+                    continue;
+                }
+                try {
+                    writeRecorder.startSample();
+                    TransactionProcessor.appendEvent(events, engine.process(transaction), writeRecorder);
+                    // Nothing else waiting: make the events visible now rather than when the buffer fills up
+                    if (pending.isEmpty()) {
+                        events.flush();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+        }
+    }
+
+    private void watchDirectory(Path directory, WatchService watcher) {
+        try {
+            while (!closed) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost, so look at every file; those already being read are skipped
+                        rescan(directory);
+                    } else if (event.context() instanceof Path file && file.toString().endsWith(".csv")) {
+                        ingestFile(directory.resolve(file));
+                    }
+                }
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Shutting down
+        }
+    }
+
+    private void rescan(Path directory) {
+        try {
+            ingestDirectory(directory);
+        } catch (IOException e) {
+            System.err.println("Rescanning " + directory + " failed: " + e);
+        }
+    }
+
+    private void ingestDirectory(Path directory) throws IOException {
+        try (DirectoryStream<Path> existing = Files.newDirectoryStream(directory, "*.csv")) {
+            List<Path> files = new ArrayList<>();
+            existing.forEach(files::add);
+            files.sort(null);
+            files.forEach(this::ingestFile);
+        }
+    }
+
+    private void ingestFile(Path file) {
+        // A file dropped during startup is both listed and reported; it is only read once
+        if (closed || !Files.isRegularFile(file) || !activeFiles.add(file)) {
+            return;
+        }
+        execute(file, () -> {
+            try {
+                CsvReader.read(file, 6, newMapper(), this::submit);
+                moveTo(file, PROCESSED_DIRECTORY);
+            } catch (IOException e) {
+                System.err.println("Feed " + file + " failed: " + e);
+                moveTo(file, FAILED_DIRECTORY);
+            } finally {
+                activeFiles.remove(file);
+            }
+        });
+    }
+
+    // Moves a file out of the watched directory, so that neither this run nor the next reads it again
+    private static void moveTo(Path file, String subdirectory) {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try {
+            Files.move(file, file.resolveSibling(subdirectory).resolve(file.getFileName()),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Moving " + file + " to " + subdirectory + " failed: " + e);
+        }
+    }
+
+    // Feeds arriving after shutdown started are left for the next run
+    private void execute(Path file, Runnable feed) {
+        try {
+            feeds.execute(feed);
+        } catch (RejectedExecutionException e) {
+            activeFiles.remove(file);
+        }
+    }
+
+    private void acceptConnections(ServerSocket server) {
+        while (!closed) {
+            try {
+                Socket socket = server.accept();
+                resources.add(socket);
+                if (closed) {
+                    // Accepted while shutting down, after the open connections were closed
+                    socket.close();
+                    return;
+                }
+                feeds.execute(() -> {
+                    // Closing the input stream closes the socket
+                    try {
+                        readFeed(String.valueOf(socket.getRemoteSocketAddress()), socket.getInputStream());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } finally {
+                        resources.remove(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (!closed) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+        }
+    }
+}
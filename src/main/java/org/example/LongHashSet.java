@@ -0,0 +1,91 @@
+package org.example;
+
+/**
+ * Open-addressing set of {@code long} keys in a single array, with no boxing and no per-entry objects.
+ * Zero marks an empty slot, so a zero key is tracked by a flag instead. Not thread-safe.
+ */
+final class LongHashSet {
+
+    private static final long EMPTY = 0;
+
+    private long[] keys;
+    private int size;
+    private boolean containsEmptyKey;
+
+    LongHashSet() {
+        this(16);
+    }
+
+    LongHashSet(int expectedSize) {
+        keys = new long[Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) * 2];
+    }
+
+    /**
+     * Adds the key, returning false when it was already present.
+     */
+    boolean add(long key) {
+        if (key == EMPTY) {
+            if (containsEmptyKey) {
+                return false;
+            }
+            containsEmptyKey = true;
+            size++;
+            return true;
+        }
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        size++;
+        // Keep the load factor at or below 0.5 so probe sequences stay short
+        if (size * 2 > keys.length) {
+            rehash();
+        }
+        return true;
+    }
+
+    boolean contains(long key) {
+        if (key == EMPTY) {
+            return containsEmptyKey;
+        }
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void rehash() {
+        long[] old = keys;
+        keys = new long[old.length * 2];
+        int mask = keys.length - 1;
+        for (long key : old) {
+            if (key != EMPTY) {
+                int slot = hash(key) & mask;
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+            }
+        }
+    }
+
+    // Spreads sequential ids, which would otherwise fill neighbouring slots, over the whole table
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,72 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes {@link PipelineMetrics} snapshots to a file: periodically while a run is in progress (when an interval is
+ * given) and once more when closed. The format follows the file extension, {@code .csv} or JSON otherwise.
+ * Each snapshot replaces the previous one atomically, so readers never see a half written file.
+ */
+final class MetricsReporter implements AutoCloseable {
+
+    private final PipelineMetrics metrics;
+    private final Path path;
+    private final ScheduledExecutorService scheduler;
+
+    MetricsReporter(PipelineMetrics metrics, Path path, long intervalSeconds) {
+        this.metrics = metrics;
+        this.path = path;
+        if (intervalSeconds > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleAtFixedRate(this::writeSnapshotQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    void writeSnapshot() throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            if (path.getFileName().toString().endsWith(".csv")) {
+                metrics.writeCsv(writer);
+            } else {
+                metrics.writeJson(writer);
+            }
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        writeSnapshot();
+    }
+
+    private void writeSnapshotQuietly() {
+        try {
+            writeSnapshot();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
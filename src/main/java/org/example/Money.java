@@ -0,0 +1,73 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Money amounts as {@code long} minor units with {@value #SCALE} fraction digits, so comparisons and sums in the
+ * validation path are plain integer operations.
+ * <p>
+ * To print a value exactly as the old {@code BigDecimal} text, the number of fraction digits it was written with is
+ * kept next to it (its display scale) and passed back in when formatting.
+ */
+final class Money {
+
+    static final int SCALE = 2;
+
+    private static final long[] POWERS_OF_TEN = {1, 10, 100};
+
+    private Money() {
+    }
+
+    static long add(long amount, long delta) {
+        return Math.addExact(amount, delta);
+    }
+
+    static String format(long amount, int scale) {
+        StringBuilder text = new StringBuilder(24);
+        try {
+            appendTo(text, amount, scale);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+            throw new UncheckedIOException(e);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Appends the amount with {@code scale} fraction digits, e.g. to a {@link CsvWriter}, which encodes it straight
+     * into its buffer.
+     */
+    static void appendTo(Appendable out, long amount, int scale) throws IOException {
+        checkScale(scale);
+        long magnitude = Math.abs(amount);
+        if (amount < 0) {
+            out.append('-');
+        }
+        long whole = magnitude / POWERS_OF_TEN[SCALE];
+        long unit = 1;
+        while (unit <= whole / 10) {
+            unit *= 10;
+        }
+        for (; unit > 0; unit /= 10) {
+            out.append((char) ('0' + whole / unit % 10));
+        }
+        if (scale > 0) {
+            out.append('.');
+            long fraction = fraction(magnitude, scale);
+            for (int digit = scale - 1; digit >= 0; digit--) {
+                out.append((char) ('0' + fraction / POWERS_OF_TEN[digit] % 10));
+            }
+        }
+    }
+
+    private static long fraction(long magnitude, int scale) {
+        return magnitude % POWERS_OF_TEN[SCALE] / POWERS_OF_TEN[SCALE - scale];
+    }
+
+    private static void checkScale(int scale) {
+        if (scale < 0 || scale > SCALE) {
+            throw new IllegalArgumentException("Unsupported scale " + scale);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for every validation rule and pipeline stage of one run.
+ * <p>
+ * Counts are exact. Latencies are sampled: each thread records through its own {@link Recorder}, which times one
+ * transaction out of every {@code sampleInterval}, so the {@code System.nanoTime()} calls stay off most of the
+ * hot path. A disabled instance makes every recording call a single branch. The hit and miss counters of the
+ * run's {@link CardLookupCache} are reported alongside.
+ */
+final class PipelineMetrics {
+
+    enum Stage {
+        READ,
+        VALIDATE,
+        WRITE
+    }
+
+    static final int DEFAULT_SAMPLE_INTERVAL = 64;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final boolean enabled;
+    private final int sampleMask;
+    private final LongAdder[] evaluated = newAdders(ValidationRule.values().length);
+    private final LongAdder[] rejected = newAdders(ValidationRule.values().length);
+    private final LatencyHistogram[] ruleLatencies = newHistograms(ValidationRule.values().length);
+    private final LongAdder[] stageCounts = newAdders(Stage.values().length);
+    private final LatencyHistogram[] stageLatencies = newHistograms(Stage.values().length);
+    private volatile CardLookupCache cardLookups;
+
+    private PipelineMetrics(boolean enabled, int sampleInterval) {
+        if (Integer.bitCount(sampleInterval) != 1) {
+            throw new IllegalArgumentException("Sample interval must be a power of two: " + sampleInterval);
+        }
+        this.enabled = enabled;
+        this.sampleMask = sampleInterval - 1;
+    }
+
+    static PipelineMetrics enabled() {
+        return new PipelineMetrics(true, DEFAULT_SAMPLE_INTERVAL);
+    }
+
+    static PipelineMetrics enabled(int sampleInterval) {
+        return new PipelineMetrics(true, sampleInterval);
+    }
+
+    static PipelineMetrics disabled() {
+        return new PipelineMetrics(false, 1);
+    }
+
+    /**
+     * A recorder for the calling thread. Recorders are not thread-safe, every thread needs its own.
+     */
+    Recorder newRecorder() {
+        return new Recorder();
+    }
+
+    long getEvaluated(ValidationRule rule) {
+        return evaluated[rule.ordinal()].sum();
+    }
+
+    long getRejected(ValidationRule rule) {
+        return rejected[rule.ordinal()].sum();
+    }
+
+    long getCount(Stage stage) {
+        return stageCounts[stage.ordinal()].sum();
+    }
+
+    void setCardLookups(CardLookupCache cardLookups) {
+        this.cardLookups = cardLookups;
+    }
+
+    void writeJson(Writer writer) throws IOException {
+        writer.append("{\n  \"timestamp\": \"").append(Instant.now().toString()).append("\",\n  \"rules\": [\n");
+        ValidationRule[] rules = ValidationRule.values();
+        for (ValidationRule rule : rules) {
+            writer.append("    {\"rule\": \"").append(rule.name())
+                    .append("\", \"message\": \"").append(rule.getMessage())
+                    .append("\", \"evaluated\": ").append(String.valueOf(getEvaluated(rule)))
+                    .append(", \"rejected\": ").append(String.valueOf(getRejected(rule)))
+                    .append(", \"latency_ns\": ");
+            appendJson(writer, ruleLatencies[rule.ordinal()]);
+            writer.append(rule.ordinal() < rules.length - 1 ? "},\n" : "}\n");
+        }
+        writer.append("  ],\n  \"stages\": [\n");
+        Stage[] stages = Stage.values();
+        for (Stage stage : stages) {
+            writer.append("    {\"stage\": \"").append(stage.name())
+                    .append("\", \"count\": ").append(String.valueOf(getCount(stage)))
+                    .append(", \"latency_ns\": ");
+            appendJson(writer, stageLatencies[stage.ordinal()]);
+            writer.append(stage.ordinal() < stages.length - 1 ? "},\n" : "}\n");
+        }
+        writer.append("  ]");
+        CardLookupCache cache = cardLookups;
+        if (cache != null) {
+            writer.append(",\n  \"card_lookup_cache\": {\"capacity\": ").append(String.valueOf(cache.capacity()))
+                    .append(", \"hits\": ").append(String.valueOf(cache.getHits()))
+                    .append(", \"misses\": ").append(String.valueOf(cache.getMisses())).append('}');
+        }
+        writer.append("\n}\n");
+    }
+
+    void writeCsv(Writer writer) throws IOException {
+        writer.append("kind,name,count,rejected,samples,mean_ns,p50_ns,p90_ns,p99_ns,p999_ns,max_ns\n");
+        for (ValidationRule rule : ValidationRule.values()) {
+            writer.append("rule,").append(rule.name()).append(',').append(String.valueOf(getEvaluated(rule)))
+                    .append(',').append(String.valueOf(getRejected(rule)));
+            appendCsv(writer, ruleLatencies[rule.ordinal()]);
+        }
+        for (Stage stage : Stage.values()) {
+            writer.append("stage,").append(stage.name()).append(',').append(String.valueOf(getCount(stage))).append(',');
+            appendCsv(writer, stageLatencies[stage.ordinal()]);
+        }
+        CardLookupCache cache = cardLookups;
+        if (cache != null) {
+            writer.append("cache,CARD_LOOKUP_HITS,").append(String.valueOf(cache.getHits())).append(",,,,,,,,\n");
+            writer.append("cache,CARD_LOOKUP_MISSES,").append(String.valueOf(cache.getMisses())).append(",,,,,,,,\n");
+        }
+    }
+
+    private static void appendJson(Writer writer, LatencyHistogram histogram) throws IOException {
+        writer.append("{\"samples\": ").append(String.valueOf(histogram.getCount()))
+                .append(", \"mean\": ").append(String.format(Locale.ROOT, "%.1f", histogram.getMean()));
+        for (double percentile : PERCENTILES) {
+            writer.append(", \"p").append(percentileLabel(percentile)).append("\": ")
+                    .append(String.valueOf(histogram.getValueAtPercentile(percentile)));
+        }
+        writer.append(", \"max\": ").append(String.valueOf(histogram.getMax())).append('}');
+    }
+
+    private static void appendCsv(Writer writer, LatencyHistogram histogram) throws IOException {
+        writer.append(',').append(String.valueOf(histogram.getCount()))
+                .append(',').append(String.format(Locale.ROOT, "%.1f", histogram.getMean()));
+        for (double percentile : PERCENTILES) {
+            writer.append(',').append(String.valueOf(histogram.getValueAtPercentile(percentile)));
+        }
+        writer.append(',').append(String.valueOf(histogram.getMax())).append('\n');
+    }
+
+    private static String percentileLabel(double percentile) {
+        return percentile == Math.rint(percentile)
+                ? String.valueOf((long) percentile)
+                : String.valueOf(percentile).replace(".", "");
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static LatencyHistogram[] newHistograms(int count) {
+        LatencyHistogram[] histograms = new LatencyHistogram[count];
+        for (int i = 0; i < count; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    /**
+     * Per-thread entry point. Call {@link #startSample()} once per transaction (or row), then pass the value of
+     * {@link #now()} taken before each measured step to the matching record method.
+     */
+    final class Recorder {
+        private long sequence;
+        private boolean timing;
+
+        private Recorder() {
+        }
+
+        void startSample() {
+            timing = enabled && (sequence++ & sampleMask) == 0;
+        }
+
+        long now() {
+            return timing ? System.nanoTime() : 0;
+        }
+
+        void recordRule(ValidationRule rule, long startedAt, boolean rejectedByRule) {
+            if (!enabled) {
+                return;
+            }
+            evaluated[rule.ordinal()].increment();
+            if (rejectedByRule) {
+                rejected[rule.ordinal()].increment();
+            }
+            if (timing) {
+                ruleLatencies[rule.ordinal()].record(System.nanoTime() - startedAt);
+            }
+        }
+
+        void recordStage(Stage stage, long startedAt) {
+            if (!enabled) {
+                return;
+            }
+            stageCounts[stage.ordinal()].increment();
+            if (timing) {
+                stageLatencies[stage.ordinal()].record(System.nanoTime() - startedAt);
+            }
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary snapshot of the reference tables (users.csv and bins.csv), so a run can skip parsing them when they have
+ * not changed since the snapshot was taken.
+ * <p>
+ * The file is a fixed header followed by a payload of columns: a string dictionary, then one primitive array per
+ * user field and the already flattened BIN segments, each string stored as its dictionary index. The header holds a
+ * format version, the size and a CRC32C of the contents of both CSV files and a CRC32 of the payload. A snapshot is
+ * only used when all of them match; otherwise the CSV files are parsed and the snapshot is written again. The CSV
+ * files are checksummed rather than compared by modification time, which misses same-length edits within its
+ * resolution and copies that keep it; checksumming reads them once but parses nothing, a small part of parsing them.
+ * Loading maps the file and bulk-copies the columns, so no text is parsed and repeated strings such as countries
+ * and card types are created once.
+ * <p>
+ * Layout, big-endian, longs and long columns 8-byte aligned:
+ * <pre>
+ * header   int magic, int version, long usersSize, long usersChecksum, long binsSize, long binsChecksum,
+ *          long payloadLength, long payloadCrc32
+ * strings  int count, int[count + 1] end offsets, byte[] UTF-8 data
+ * users    int count, int[] userId, int[] username, int[] country, int[] frozen, int[] balanceScale,
+ *          long[] balance, long[] depositMin, long[] depositMax, long[] withdrawMin, long[] withdrawMax
+ * bins     int mappings, int[] name, int[] type, int[] country, long[] rangeFrom, long[] rangeTo,
+ *          int segments, int[] mapping, long[] from, long[] to, int[segments + 1] debitCardCountryStarts,
+ *          int[] debitCardCountry
+ * </pre>
+ */
+final class ReferenceSnapshot {
+
+    static final int VERSION = 3;
+    private static final int MAGIC = 0x54585253;
+    private static final int HEADER_SIZE = 56;
+    private static final int NO_STRING = -1;
+    private static final long CHECKSUM_WINDOW = 1 << 30;
+
+    private final UserRegistry users;
+    private final BinRangeIndex binIndex;
+
+    private ReferenceSnapshot(UserRegistry users, BinRangeIndex binIndex) {
+        this.users = users;
+        this.binIndex = binIndex;
+    }
+
+    UserRegistry getUsers() {
+        return users;
+    }
+
+    BinRangeIndex getBinIndex() {
+        return binIndex;
+    }
+
+    /**
+     * Loads the snapshot when it is fresh and intact, otherwise parses the CSV files and replaces the snapshot.
+     * Either way the tables are interned into the run's {@code dictionaries}.
+     */
+    static ReferenceSnapshot loadOrBuild(Path snapshot, Path usersPath, Path binsPath, Dictionaries dictionaries)
+            throws IOException {
+        Sources sources = Sources.of(usersPath, binsPath);
+        if (Files.exists(snapshot)) {
+            try {
+                ReferenceSnapshot loaded = load(snapshot, sources, dictionaries);
+                if (loaded != null) {
+                    return loaded;
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Ignoring unreadable snapshot " + snapshot + ": " + e);
+            }
+        }
+        UserRegistry users = TransactionProcessor.readUsers(usersPath, dictionaries);
+        BinRangeIndex binIndex = TransactionProcessor.readBinMappings(binsPath, dictionaries);
+        write(snapshot, sources, users, binIndex);
+        return new ReferenceSnapshot(users, binIndex);
+    }
+
+    /**
+     * The snapshot's tables, or null when it was taken from other versions of the CSV files.
+     */
+    static ReferenceSnapshot load(Path snapshot, Sources sources, Dictionaries dictionaries) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Unexpected snapshot size " + channel.size());
+            }
+            ByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (file.getInt() != MAGIC) {
+                throw new IOException("Not a reference snapshot");
+            }
+            if (file.getInt() != VERSION) {
+                return null;
+            }
+            Sources taken = new Sources(file.getLong(), file.getLong(), file.getLong(), file.getLong());
+            if (!taken.equals(sources)) {
+                return null;
+            }
+            long payloadLength = file.getLong();
+            long checksum = file.getLong();
+            if (HEADER_SIZE + payloadLength != channel.size()) {
+                throw new IOException("Truncated snapshot");
+            }
+            ByteBuffer payload = file.slice(HEADER_SIZE, (int) payloadLength);
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if (crc.getValue() != checksum) {
+                throw new IOException("Snapshot checksum mismatch");
+            }
+
+            String[] strings = readStrings(payload);
+            UserRegistry users = readUsers(payload, strings, dictionaries);
+            BinRangeIndex binIndex = readBins(payload, strings, dictionaries);
+            return new ReferenceSnapshot(users, binIndex);
+        }
+    }
+
+    static void write(Path snapshot, Sources sources, UserRegistry users, BinRangeIndex binIndex) throws IOException {
+        Payload payload = new Payload(users, binIndex);
+        long payloadLength = payload.length();
+        if (HEADER_SIZE + payloadLength > Integer.MAX_VALUE) {
+            System.err.println("Reference data too large for a snapshot, keeping the CSV files only");
+            return;
+        }
+        Path directory = snapshot.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, snapshot.getFileName().toString(), ".tmp");
+        try {
+            CRC32 crc = new CRC32();
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                channel.position(HEADER_SIZE);
+                payload.writeTo(channel, crc);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION)
+                        .putLong(sources.usersSize).putLong(sources.usersChecksum)
+                        .putLong(sources.binsSize).putLong(sources.binsChecksum)
+                        .putLong(payloadLength).putLong(crc.getValue())
+                        .flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+            }
+            Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static String[] readStrings(ByteBuffer in) {
+        int count = in.getInt();
+        int[] ends = readInts(in, count + 1);
+        String[] strings = new String[count];
+        byte[] data = new byte[ends[count]];
+        in.get(data);
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            strings[i] = new String(data, start, ends[i] - start, StandardCharsets.UTF_8);
+            start = ends[i];
+        }
+        return strings;
+    }
+
+    private static UserRegistry readUsers(ByteBuffer in, String[] strings, Dictionaries dictionaries) {
+        int count = in.getInt();
+        int[] userIds = readInts(in, count);
+        int[] usernames = readInts(in, count);
+        int[] countries = readInts(in, count);
+        int[] frozen = readInts(in, count);
+        int[] balanceScales = readInts(in, count);
+        long[] balances = readLongs(in, count);
+        long[] depositMins = readLongs(in, count);
+        long[] depositMaxes = readLongs(in, count);
+        long[] withdrawMins = readLongs(in, count);
+        long[] withdrawMaxes = readLongs(in, count);
+
+        UserRegistry users = new UserRegistry(dictionaries, count);
+        int[] countryIds = unresolved(strings);
+        for (int i = 0; i < count; i++) {
+            users.add(new User(string(strings, userIds[i]), string(strings, usernames[i]), balances[i],
+                    balanceScales[i], intern(dictionaries.getCountries(), strings, countryIds, countries[i]), frozen[i],
+                    depositMins[i], depositMaxes[i], withdrawMins[i], withdrawMaxes[i]));
+        }
+        return users;
+    }
+
+    private static BinRangeIndex readBins(ByteBuffer in, String[] strings, Dictionaries dictionaries) {
+        int mappingCount = in.getInt();
+        int[] names = readInts(in, mappingCount);
+        int[] types = readInts(in, mappingCount);
+        int[] countries = readInts(in, mappingCount);
+        long[] rangeFrom = readLongs(in, mappingCount);
+        long[] rangeTo = readLongs(in, mappingCount);
+        BinMapping[] mappings = new BinMapping[mappingCount];
+        int[] typeIds = unresolved(strings);
+        int[] countryIds = unresolved(strings);
+        for (int i = 0; i < mappingCount; i++) {
+            mappings[i] = new BinMapping(string(strings, names[i]), rangeFrom[i], rangeTo[i],
+                    intern(dictionaries.getCodes(), strings, typeIds, types[i]),
+                    intern(dictionaries.getCountries(), strings, countryIds, countries[i]));
+        }
+
+        int segmentCount = in.getInt();
+        int[] owners = readInts(in, segmentCount);
+        long[] from = readLongs(in, segmentCount);
+        long[] to = readLongs(in, segmentCount);
+        BinMapping[] segmentMappings = new BinMapping[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segmentMappings[i] = mappings[owners[i]];
+        }
+        int[] debitCardCountryStarts = readInts(in, segmentCount + 1);
+        int[] debitCardCountries = readInts(in, debitCardCountryStarts[segmentCount]);
+        for (int i = 0; i < debitCardCountries.length; i++) {
+            debitCardCountries[i] = intern(dictionaries.getCountries(), strings, countryIds, debitCardCountries[i]);
+        }
+        return BinRangeIndex.fromSegments(from, to, segmentMappings, debitCardCountryStarts, debitCardCountries);
+    }
+
+    private static String string(String[] strings, int index) {
+        return index == NO_STRING ? null : strings[index];
+    }
+
+    // Snapshot strings are interned once each rather than once per row referencing them
+    private static int intern(StringDictionary dictionary, String[] strings, int[] ids, int index) {
+        if (ids[index] < 0) {
+            ids[index] = dictionary.intern(strings[index]);
+        }
+        return ids[index];
+    }
+
+    private static int[] unresolved(String[] strings) {
+        int[] ids = new int[strings.length];
+        Arrays.fill(ids, -1);
+        return ids;
+    }
+
+    private static int[] readInts(ByteBuffer in, int count) {
+        int[] values = new int[count];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + count * Integer.BYTES);
+        return values;
+    }
+
+    private static long[] readLongs(ByteBuffer in, int count) {
+        in.position(align(in.position()));
+        long[] values = new long[count];
+        in.asLongBuffer().get(values);
+        in.position(in.position() + count * Long.BYTES);
+        return values;
+    }
+
+    private static int align(int position) {
+        return (position + Long.BYTES - 1) & -Long.BYTES;
+    }
+
+    /**
+     * Size and content checksum of both CSV files, to tell whether a snapshot was taken from them.
+     */
+    record Sources(long usersSize, long usersChecksum, long binsSize, long binsChecksum) {
+
+        static Sources of(Path usersPath, Path binsPath) throws IOException {
+            return new Sources(Files.size(usersPath), checksum(usersPath), Files.size(binsPath), checksum(binsPath));
+        }
+
+        // CRC32C of the file, mapped a window at a time so it is not copied onto the heap
+        private static long checksum(Path path) throws IOException {
+            CRC32C crc = new CRC32C();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                for (long position = 0; position < size; position += CHECKSUM_WINDOW) {
+                    crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(CHECKSUM_WINDOW, size - position)));
+                }
+            }
+            return crc.getValue();
+        }
+    }
+
+    // Collects the columns and the string dictionary, then writes them in snapshot order through one buffer. The
+    // same pass without a channel only counts the bytes, so the size is known before anything is written.
+    private static final class Payload {
+        private final Map<String, Integer> stringIds = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private final List<byte[]> encodedStrings = new ArrayList<>();
+        private final int userCount;
+        private final int[] userIds;
+        private final int[] usernames;
+        private final int[] countries;
+        private final int[] frozen;
+        private final int[] balanceScales;
+        private final long[] balances;
+        private final long[] depositMins;
+        private final long[] depositMaxes;
+        private final long[] withdrawMins;
+        private final long[] withdrawMaxes;
+        private final int mappingCount;
+        private final int[] names;
+        private final int[] types;
+        private final int[] mappingCountries;
+        private final long[] rangeFrom;
+        private final long[] rangeTo;
+        private final int segmentCount;
+        private final int[] owners;
+        private final long[] from;
+        private final long[] to;
+        private final int[] debitCardCountryStarts;
+        private final int[] debitCardCountries;
+        // Null while counting
+        private FileChannel channel;
+        private CRC32 crc;
+        private ByteBuffer buffer;
+        private long written;
+
+        Payload(UserRegistry users, BinRangeIndex binIndex) {
+            userCount = users.size();
+            userIds = new int[userCount];
+            usernames = new int[userCount];
+            countries = new int[userCount];
+            frozen = new int[userCount];
+            balanceScales = new int[userCount];
+            balances = new long[userCount];
+            depositMins = new long[userCount];
+            depositMaxes = new long[userCount];
+            withdrawMins = new long[userCount];
+            withdrawMaxes = new long[userCount];
+            Dictionaries dictionaries = users.getDictionaries();
+            int i = 0;
+            for (User user : users) {
+                userIds[i] = id(user.getUserId());
+                usernames[i] = id(user.getUsername());
+                countries[i] = id(dictionaries.getCountries().toString(user.getCountry()));
+                frozen[i] = user.getFrozen();
+                balanceScales[i] = user.getBalanceScale();
+                balances[i] = user.getBalance();
+                depositMins[i] = user.getDepositMin();
+                depositMaxes[i] = user.getDepositMax();
+                withdrawMins[i] = user.getWithdrawMin();
+                withdrawMaxes[i] = user.getWithdrawMax();
+                i++;
+            }
+
+            // Segments share mapping objects, each distinct mapping is stored once
+            Map<BinMapping, Integer> mappingIds = new IdentityHashMap<>();
+            List<BinMapping> mappings = new ArrayList<>();
+            segmentCount = binIndex.size();
+            owners = new int[segmentCount];
+            from = new long[segmentCount];
+            to = new long[segmentCount];
+            debitCardCountryStarts = new int[segmentCount + 1];
+            List<Integer> countryColumn = new ArrayList<>();
+            for (int segment = 0; segment < segmentCount; segment++) {
+                BinMapping mapping = binIndex.getSegmentMapping(segment);
+                Integer id = mappingIds.get(mapping);
+                if (id == null) {
+                    id = mappings.size();
+                    mappingIds.put(mapping, id);
+                    mappings.add(mapping);
+                }
+                owners[segment] = id;
+                from[segment] = binIndex.getSegmentFrom(segment);
+                to[segment] = binIndex.getSegmentTo(segment);
+                int count = binIndex.getDebitCardCountryCount(segment);
+                for (int c = 0; c < count; c++) {
+                    int country = binIndex.getDebitCardCountry(segment, c);
+                    countryColumn.add(id(dictionaries.getCountries().toString(country)));
+                }
+                debitCardCountryStarts[segment + 1] = debitCardCountryStarts[segment] + count;
+            }
+            debitCardCountries = countryColumn.stream().mapToInt(Integer::intValue).toArray();
+            mappingCount = mappings.size();
+            names = new int[mappingCount];
+            types = new int[mappingCount];
+            mappingCountries = new int[mappingCount];
+            rangeFrom = new long[mappingCount];
+            rangeTo = new long[mappingCount];
+            for (int m = 0; m < mappingCount; m++) {
+                BinMapping mapping = mappings.get(m);
+                names[m] = id(mapping.getName());
+                types[m] = id(dictionaries.getCodes().toString(mapping.getType()));
+                mappingCountries[m] = id(dictionaries.getCountries().toString(mapping.getCountry()));
+                rangeFrom[m] = mapping.getRangeFrom();
+                rangeTo[m] = mapping.getRangeTo();
+            }
+            for (String value : strings) {
+                encodedStrings.add(value.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        long length() throws IOException {
+            return emit(null, null);
+        }
+
+        // Returns the payload length
+        long writeTo(FileChannel channel, CRC32 crc) throws IOException {
+            return emit(channel, crc);
+        }
+
+        private long emit(FileChannel channel, CRC32 crc) throws IOException {
+            this.channel = channel;
+            this.crc = crc;
+            buffer = channel == null ? null : ByteBuffer.allocate(1 << 20);
+            written = 0;
+
+            writeStrings();
+
+            writeInt(userCount);
+            writeInts(userIds, usernames, countries, frozen, balanceScales);
+            writeLongs(balances, depositMins, depositMaxes, withdrawMins, withdrawMaxes);
+
+            writeInt(mappingCount);
+            writeInts(names, types, mappingCountries);
+            writeLongs(rangeFrom, rangeTo);
+            writeInt(segmentCount);
+            writeInts(owners);
+            writeLongs(from, to);
+            writeInts(debitCardCountryStarts, debitCardCountries);
+            flush();
+            return written;
+        }
+
+        private int id(String value) {
+            if (value == null) {
+                return NO_STRING;
+            }
+            Integer id = stringIds.get(value);
+            if (id == null) {
+                id = strings.size();
+                stringIds.put(value, id);
+                strings.add(value);
+            }
+            return id;
+        }
+
+        private void writeStrings() throws IOException {
+            writeInt(encodedStrings.size());
+            long end = 0;
+            for (byte[] bytes : encodedStrings) {
+                end += bytes.length;
+                // Only ever written once length() has been checked, so the offsets fit
+                writeInt((int) end);
+            }
+            writeInt((int) end);
+            for (byte[] bytes : encodedStrings) {
+                if (channel != null) {
+                    for (int offset = 0; offset < bytes.length; ) {
+                        int count = Math.min(room(1), bytes.length - offset);
+                        buffer.put(bytes, offset, count);
+                        offset += count;
+                    }
+                }
+                written += bytes.length;
+            }
+        }
+
+        private void writeInt(int value) throws IOException {
+            if (channel != null) {
+                room(Integer.BYTES);
+                buffer.putInt(value);
+            }
+            written += Integer.BYTES;
+        }
+
+        private void writeInts(int[]... columns) throws IOException {
+            for (int[] column : columns) {
+                if (channel != null) {
+                    for (int offset = 0; offset < column.length; ) {
+                        int count = Math.min(room(Integer.BYTES) / Integer.BYTES, column.length - offset);
+                        buffer.asIntBuffer().put(column, offset, count);
+                        buffer.position(buffer.position() + count * Integer.BYTES);
+                        offset += count;
+                    }
+                }
+                written += (long) column.length * Integer.BYTES;
+            }
+        }
+
+        private void writeLongs(long[]... columns) throws IOException {
+            for (long[] column : columns) {
+                // Pad to the alignment readLongs expects
+                while (written % Long.BYTES != 0) {
+                    if (channel != null) {
+                        room(1);
+                        buffer.put((byte) 0);
+                    }
+                    written++;
+                }
+                if (channel != null) {
+                    for (int offset = 0; offset < column.length; ) {
+                        int count = Math.min(room(Long.BYTES) / Long.BYTES, column.length - offset);
+                        buffer.asLongBuffer().put(column, offset, count);
+                        buffer.position(buffer.position() + count * Long.BYTES);
+                        offset += count;
+                    }
+                }
+                written += (long) column.length * Long.BYTES;
+            }
+        }
+
+        // Flushes when fewer than the given bytes are left and returns the room in the buffer
+        private int room(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+            return buffer.remaining();
+        }
+
+        private void flush() throws IOException {
+            if (channel == null) {
+                return;
+            }
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
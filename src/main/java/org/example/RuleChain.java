@@ -0,0 +1,41 @@
+package org.example;
+
+import java.util.List;
+
+/**
+ * Runs a fixed list of {@link TransactionRule}s and reports the decline the spec would give: the highest priority
+ * {@link ValidationRule} any of them rejects with.
+ * <p>
+ * The first rejection ends the evaluation, so the rules have to be listed in priority order; that is also the
+ * cheapest order, since every rule ranked above the eventual decline has to pass no matter what ran first. Several
+ * rules may share a message, those run in the order they are listed.
+ */
+final class RuleChain {
+
+    private final TransactionRule[] rules;
+
+    RuleChain(List<TransactionRule> rules) {
+        for (int i = 1; i < rules.size(); i++) {
+            if (rules.get(i).getRule().compareTo(rules.get(i - 1).getRule()) < 0) {
+                throw new IllegalArgumentException(rules.get(i) + " is listed after the lower priority "
+                        + rules.get(i - 1));
+            }
+        }
+        this.rules = rules.toArray(new TransactionRule[0]);
+    }
+
+    /**
+     * The highest priority rule rejecting the context's transaction, or null when every rule passes.
+     */
+    ValidationRule firstRejection(RuleContext context, PipelineMetrics.Recorder metrics) {
+        for (TransactionRule rule : rules) {
+            long checkedAt = metrics.now();
+            boolean rejected = rule.rejects(context);
+            metrics.recordRule(rule.getRule(), checkedAt, rejected);
+            if (rejected) {
+                return rule.getRule();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,75 @@
+package org.example;
+
+/**
+ * The transaction and user a {@link RuleChain} is evaluating, plus lookups that more than one rule needs, done at
+ * most once per transaction. An engine reuses one context for all its transactions.
+ */
+final class RuleContext {
+
+    private final CardLookupCache cardLookups;
+    private final BinRangeIndex binIndex;
+    private final StringDictionary.View accountNumberView;
+    private Transaction transaction;
+    private CharSequence accountNumber;
+    private User user;
+    // BinRangeIndex segment, -1 when not a known card
+    private int binSegment;
+    private boolean binSegmentResolved;
+
+    RuleContext(CardLookupCache cardLookups, StringDictionary accounts) {
+        this.cardLookups = cardLookups;
+        this.binIndex = cardLookups.getBinIndex();
+        this.accountNumberView = accounts.newView();
+    }
+
+    RuleContext reset(Transaction transaction, User user) {
+        this.transaction = transaction;
+        this.user = user;
+        this.binSegmentResolved = false;
+        this.accountNumber = transaction.getNewAccountNumber() != null
+                ? transaction.getNewAccountNumber()
+                : accountNumberView.reset(transaction.getAccountNumber());
+        return this;
+    }
+
+    Transaction getTransaction() {
+        return transaction;
+    }
+
+    User getUser() {
+        return user;
+    }
+
+    /**
+     * The transaction's account number, read in place from the dictionary once the account has an id. Valid until
+     * the next reset.
+     */
+    CharSequence getAccountNumber() {
+        return accountNumber;
+    }
+
+    /**
+     * The BIN range of the transaction's account number listed first in bins.csv, or null when it is not a known
+     * card.
+     */
+    BinMapping getBinMapping() {
+        int segment = getBinSegment();
+        return segment < 0 ? null : binIndex.getSegmentMapping(segment);
+    }
+
+    /**
+     * Whether any debit card BIN range of the country covers the transaction's account number.
+     */
+    boolean isDebitCardOf(int country) {
+        int segment = getBinSegment();
+        return segment >= 0 && binIndex.isDebitCardCountry(segment, country);
+    }
+
+    private int getBinSegment() {
+        if (!binSegmentResolved) {
+            binSegment = cardLookups.find(accountNumber);
+            binSegmentResolved = true;
+        }
+        return binSegment;
+    }
+}
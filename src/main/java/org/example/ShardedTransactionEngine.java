@@ -0,0 +1,322 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Validates transactions on several worker shards, partitioned by userId.
+ * <p>
+ * Each shard owns its users: their balances and deposit accounts are only touched from the shard's thread and a
+ * shard handles its transactions in input order, so no locks are needed for per-user state. The two checks that
+ * span users are resolved so that the result matches {@link TransactionEngine} exactly:
+ * <ul>
+ *     <li>the submitting thread looks the user up, which picks the shard, and links each transaction to the last
+ *     earlier one with the same transaction ID and the last earlier one with the same payment account. Links go by
+ *     hash slot, so unrelated transactions occasionally share one, which only costs a wait;</li>
+ *     <li>transaction ID uniqueness is checked on the shards, in a set striped by hash, once the linked earlier
+ *     transaction with the same ID is done;</li>
+ *     <li>payment account owners live in one {@link AccountOwnershipIndex} shared by all shards. An account that
+ *     is still unclaimed can only be taken once the linked earlier transaction with the same account is done.
+ *     A shard does not count a transaction as done before its own link is, so by then every earlier transaction
+ *     with the account is done, and no later one can have claimed it.</li>
+ * </ul>
+ * Waits only ever go to an earlier transaction, so the lowest unfinished one always makes progress. Events are
+ * handed to the output in input order by a single writer thread.
+ */
+final class ShardedTransactionEngine implements AutoCloseable {
+
+    private static final int QUEUE_CAPACITY = 16 * 1024;
+    // Links are the sequence number shifted left by SHARD_BITS, or'ed with the shard index
+    private static final int SHARD_BITS = 16;
+    private static final long NO_LINK = -1;
+    private static final int LINK_SLOTS = 1 << 18;
+    private static final Task POISON = new Task(null, null, -1, null, NO_LINK, NO_LINK);
+    private static final CompletableFuture<Event> END = new CompletableFuture<>();
+
+    private final UserRegistry users;
+    private final StringDictionary accounts;
+    // Transaction ID stripes, each only used while holding its lock
+    private final TransactionIdSet[] transactionIds;
+    private final Shard[] shards;
+    private final BlockingQueue<CompletableFuture<Event>> pendingEvents = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final CsvReader.RecordConsumer<Event> output;
+    private final PipelineMetrics.Recorder metrics;
+    private final Thread writer;
+    // Last submitted transaction per transaction ID and per account hash slot, only used by the submitting thread
+    private final long[] lastById = new long[LINK_SLOTS];
+    private final long[] lastByAccount = new long[LINK_SLOTS];
+    private volatile Throwable failure;
+    private long nextSequence;
+
+    /**
+     * Transaction IDs are kept in {@link TransactionIdSet}s that spill to the given directory, or stay in memory if
+     * it is null.
+     */
+    ShardedTransactionEngine(UserRegistry users, BinRangeIndex binIndex, Path spillDirectory,
+                             int shardCount, PipelineMetrics metrics, CsvReader.RecordConsumer<Event> output) {
+        if (shardCount > 1 << SHARD_BITS) {
+            throw new IllegalArgumentException("At most " + (1 << SHARD_BITS) + " shards are supported");
+        }
+        this.users = users;
+        this.accounts = users.getDictionaries().getAccounts();
+        this.output = output;
+        this.metrics = metrics.newRecorder();
+        Arrays.fill(lastById, NO_LINK);
+        Arrays.fill(lastByAccount, NO_LINK);
+        // At least two stripes per shard, so that shards rarely wait for one another's lock
+        transactionIds = new TransactionIdSet[Integer.highestOneBit(shardCount) * 4];
+        for (int i = 0; i < transactionIds.length; i++) {
+            transactionIds[i] = new TransactionIdSet(spillDirectory);
+        }
+        AccountOwnershipIndex accountOwners = new AccountOwnershipIndex(accounts);
+        CardLookupCache cardLookups = new CardLookupCache(binIndex);
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            ShardAccountOwnership shardOwners = new ShardAccountOwnership(accountOwners);
+            shards[i] = new Shard(new TransactionEngine(users, cardLookups, shardOwners, metrics), shardOwners,
+                    metrics.newRecorder());
+            shards[i].thread = new Thread(shards[i]::run, "transaction-shard-" + i);
+            shards[i].thread.start();
+        }
+        writer = new Thread(this::writeEvents, "event-writer");
+        writer.start();
+    }
+
+    /**
+     * See {@link TransactionEngine#onApproval}. The listener is called from every shard's thread, with each user's
+     * transactions in input order.
+     */
+    void onApproval(Consumer<Transaction> listener) {
+        for (Shard shard : shards) {
+            shard.engine.onApproval(listener);
+        }
+    }
+
+    void submit(Transaction transaction) throws IOException {
+        rethrowFailure();
+        metrics.startSample();
+
+        long startedAt = metrics.now();
+
+        // Find if the user associated with the transaction
+        long checkedAt = metrics.now();
+        User user = users.find(transaction.getUserId());
+        metrics.recordRule(ValidationRule.USER_NOT_FOUND, checkedAt, user == null);
+        if (user == null) {
+            decline(transaction, ValidationRule.USER_NOT_FOUND, startedAt);
+            return;
+        }
+
+        int shard = shardIndex(user.getUserId());
+        long sequence = nextSequence++;
+        long link = sequence << SHARD_BITS | shard;
+        int idSlot = slot(transaction.getTransactionId().hashCode());
+        int accountSlot = slot(transaction.getAccountNumber() == StringDictionary.NOT_FOUND
+                ? StringDictionary.hash(transaction.getNewAccountNumber())
+                : accounts.hash(transaction.getAccountNumber()));
+        CompletableFuture<Event> event = new CompletableFuture<>();
+        Task task = new Task(transaction, user, sequence, event, lastById[idSlot], lastByAccount[accountSlot]);
+        lastById[idSlot] = link;
+        lastByAccount[accountSlot] = link;
+        put(pendingEvents, event);
+        put(shards[shard].tasks, task);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Shard shard : shards) {
+            put(shard.tasks, POISON);
+        }
+        put(pendingEvents, END);
+        try {
+            for (Shard shard : shards) {
+                shard.thread.join();
+            }
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for transaction shards", e);
+        }
+        rethrowFailure();
+    }
+
+    private void decline(Transaction transaction, ValidationRule rule, long startedAt) throws IOException {
+        put(pendingEvents, CompletableFuture.completedFuture(TransactionEngine.declined(transaction, rule.getMessage())));
+        metrics.recordStage(PipelineMetrics.Stage.VALIDATE, startedAt);
+    }
+
+    private int shardIndex(String userId) {
+        int hash = userId.hashCode();
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % shards.length;
+    }
+
+    private static int slot(int hash) {
+        return (hash ^ (hash >>> 16)) & (LINK_SLOTS - 1);
+    }
+
+    private boolean addTransactionId(String transactionId) {
+        int hash = transactionId.hashCode();
+        TransactionIdSet stripe = transactionIds[(hash ^ (hash >>> 16)) & (transactionIds.length - 1)];
+        synchronized (stripe) {
+            return stripe.add(transactionId);
+        }
+    }
+
+    private void writeEvents() {
+        try {
+            CompletableFuture<Event> next;
+            while ((next = pendingEvents.take()) != END) {
+                try {
+                    Event event = next.join();
+                    if (failure == null) {
+                        output.accept(event);
+                    }
+                } catch (CompletionException | IOException e) {
+                    fail(e instanceof CompletionException ? e.getCause() : e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(e);
+        }
+    }
+
+    // Waits until the linked transaction is done, or until the run has failed and nothing more gets written
+    private void awaitDone(long link) {
+        if (link == NO_LINK) {
+            return;
+        }
+        Shard shard = shards[(int) (link & ((1 << SHARD_BITS) - 1))];
+        long sequence = link >>> SHARD_BITS;
+        int spins = 0;
+        while (shard.done < sequence && failure == null) {
+            if (++spins < 1_000) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(10_000);
+            }
+        }
+    }
+
+    private void fail(Throwable e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    private void rethrowFailure() throws IOException {
+        Throwable e = failure;
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e != null) {
+            throw new IOException("Transaction processing failed", e);
+        }
+    }
+
+    private static <T> void put(BlockingQueue<T> queue, T value) throws IOException {
+        try {
+            queue.put(value);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing transaction", e);
+        }
+    }
+
+    private final class Shard {
+        private final BlockingQueue<Task> tasks = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final TransactionEngine engine;
+        private final ShardAccountOwnership accountOwners;
+        private final PipelineMetrics.Recorder metrics;
+        private Thread thread;
+        // Sequence number of the last transaction this shard is done with
+        private volatile long done = -1;
+
+        private Shard(TransactionEngine engine, ShardAccountOwnership accountOwners,
+                      PipelineMetrics.Recorder metrics) {
+            this.engine = engine;
+            this.accountOwners = accountOwners;
+            this.metrics = metrics;
+        }
+
+        private void run() {
+            try {
+                Task task;
+                while ((task = tasks.take()) != POISON) {
+                    accountOwners.previousWithAccount = task.previousWithAccount;
+                    try {
+                        task.event.complete(validate(task));
+                    } catch (RuntimeException | Error e) {
+                        task.event.completeExceptionally(e);
+                    }
+                    // Not done before the earlier transaction with the account, also when declined before the
+                    // ownership check, so that waiting on the last one covers all of them
+                    awaitDone(task.previousWithAccount);
+                    done = task.sequence;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(e);
+            }
+        }
+
+        private Event validate(Task task) {
+            awaitDone(task.previousWithId);
+            metrics.startSample();
+            long checkedAt = metrics.now();
+            boolean duplicate = !addTransactionId(task.transaction.getTransactionId());
+            metrics.recordRule(ValidationRule.TRANSACTION_ID_NOT_UNIQUE, checkedAt, duplicate);
+            if (duplicate) {
+                metrics.recordStage(PipelineMetrics.Stage.VALIDATE, checkedAt);
+                return TransactionEngine.declined(task.transaction,
+                        ValidationRule.TRANSACTION_ID_NOT_UNIQUE.getMessage());
+            }
+            return engine.validate(task.transaction, task.user);
+        }
+    }
+
+    private final class ShardAccountOwnership extends AccountOwnershipIndex {
+        // Link to the earlier transaction with the account of the one the owning shard is validating
+        private long previousWithAccount;
+
+        private ShardAccountOwnership(AccountOwnershipIndex owners) {
+            super(owners);
+        }
+
+        @Override
+        boolean canUse(Transaction transaction) {
+            if (ownerOf(resolve(transaction)) == 0) {
+                // After this wait the table holds every claim that precedes this transaction and none that follows
+                // it; an account that had no id before the wait is looked up again
+                awaitDone(previousWithAccount);
+            }
+            return super.canUse(transaction);
+        }
+    }
+
+    private static final class Task {
+        private final Transaction transaction;
+        private final User user;
+        private final long sequence;
+        private final CompletableFuture<Event> event;
+        // Links to the last earlier transactions with the same transaction ID and account hash slots
+        private final long previousWithId;
+        private final long previousWithAccount;
+
+        private Task(Transaction transaction, User user, long sequence, CompletableFuture<Event> event,
+                     long previousWithId, long previousWithAccount) {
+            this.transaction = transaction;
+            this.user = user;
+            this.sequence = sequence;
+            this.event = event;
+            this.previousWithId = previousWithId;
+            this.previousWithAccount = previousWithAccount;
+        }
+    }
+}
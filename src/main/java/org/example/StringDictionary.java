@@ -0,0 +1,321 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Interns strings as dense {@code int} ids, storing their UTF-8 bytes off-heap.
+ * <p>
+ * Bytes go into direct pages of {@value #PAGE_SIZE} bytes that are never moved or changed once written, and each
+ * id maps to one packed {@code long} (page, offset, length), so a million distinct account numbers cost a few
+ * megabytes of heap instead of a million {@code String} objects. Records are interned straight from the mapped
+ * input, without creating a {@code String} first.
+ * <p>
+ * Interning and lookups by content are synchronized. Reading an id's bytes is not: pages are immutable and the
+ * entry array is only ever replaced by a larger copy, so any thread that got an id through a safe hand-off (a
+ * queue, a thread start) can read it.
+ */
+final class StringDictionary {
+
+    static final int NOT_FOUND = -1;
+    private static final int PAGE_BITS = 20;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int MAX_LENGTH = 0xFFFF;
+    private static final int EMPTY = -1;
+
+    private volatile long[] entries = new long[64];
+    private volatile ByteBuffer[] pages = new ByteBuffer[4];
+    private int[] hashes = new int[64];
+    private int[] slots = newSlots(128);
+    private int size;
+    private int pageCount;
+    private int pageOffset;
+
+    synchronized int intern(ByteBuffer source, int start, int end) {
+        int hash = hash(source, start, end);
+        int slot = findSlot(source, start, end, hash);
+        return slots[slot] != EMPTY ? slots[slot] : insert(slot, hash, source, start, end);
+    }
+
+    synchronized int intern(CharSequence text) {
+        ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+        return intern(bytes, 0, bytes.limit());
+    }
+
+    /**
+     * The id of the bytes, or {@link #NOT_FOUND} when they were never interned. Adds nothing.
+     */
+    synchronized int find(ByteBuffer source, int start, int end) {
+        int slot = findSlot(source, start, end, hash(source, start, end));
+        return slots[slot] == EMPTY ? NOT_FOUND : slots[slot];
+    }
+
+    /**
+     * The id of the text, or {@link #NOT_FOUND} when it was never interned.
+     */
+    synchronized int find(CharSequence text) {
+        ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+        return find(bytes, 0, bytes.limit());
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Length of the id's UTF-8 encoding in bytes.
+     */
+    int length(int id) {
+        return (int) (entries[id] & MAX_LENGTH);
+    }
+
+    byte byteAt(int id, int index) {
+        long entry = entries[id];
+        return pages[(int) (entry >>> 40)].get((int) (entry >>> 16 & 0xFFFFFF) + index);
+    }
+
+    String toString(int id) {
+        if (id < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length(id)];
+        long entry = entries[id];
+        pages[(int) (entry >>> 40)].get((int) (entry >>> 16 & 0xFFFFFF), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Hash of the id's UTF-8 bytes, the same as {@link #hash(CharSequence)} of its text.
+     */
+    int hash(int id) {
+        long entry = entries[id];
+        int offset = (int) (entry >>> 16 & 0xFFFFFF);
+        return hash(pages[(int) (entry >>> 40)], offset, offset + (int) (entry & MAX_LENGTH));
+    }
+
+    /**
+     * Hash of the text's UTF-8 bytes, without encoding it unless it has non-ASCII chars.
+     */
+    static int hash(CharSequence text) {
+        int h = 1;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+                return hash(bytes, 0, bytes.limit());
+            }
+            h = 31 * h + c;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Puts the id's UTF-8 bytes at the target's position and advances it.
+     */
+    void copyTo(int id, ByteBuffer target) {
+        int length = length(id);
+        long entry = entries[id];
+        target.put(target.position(), pages[(int) (entry >>> 40)], (int) (entry >>> 16 & 0xFFFFFF), length);
+        target.position(target.position() + length);
+    }
+
+    /**
+     * Case-insensitive comparison for ASCII text, which is what codes and country names are; any other byte has to
+     * match exactly. Ids below zero stand for a missing value and match nothing.
+     */
+    boolean equalsIgnoreCase(int id, int otherId) {
+        if (id < 0 || otherId < 0) {
+            return false;
+        }
+        if (id == otherId) {
+            return true;
+        }
+        int length = length(id);
+        if (length != length(otherId)) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (!sameIgnoringCase(byteAt(id, i), byteAt(otherId, i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean equalsIgnoreCase(int id, String ascii) {
+        if (id < 0 || length(id) != ascii.length()) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if (!sameIgnoringCase(byteAt(id, i), (byte) ascii.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the id's text, ignoring ASCII case, appears in {@code text} at {@code offset}; the text may go on.
+     */
+    boolean regionMatchesIgnoreCase(int id, CharSequence text, int offset) {
+        if (id < 0 || text.length() - offset < length(id)) {
+            return false;
+        }
+        for (int i = 0; i < length(id); i++) {
+            char c = text.charAt(offset + i);
+            if (c >= 0x80 || !sameIgnoringCase(byteAt(id, i), (byte) c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A reusable, allocation-free view of an id as ASCII chars. Non-ASCII text is not decoded: every byte above 0x7F
+     * becomes one char above 0x7F, so checks that must decide the same for the view and the original text reject
+     * all non-ASCII chars. Not thread-safe: one view per thread.
+     */
+    View newView() {
+        return new View();
+    }
+
+    private int findSlot(ByteBuffer source, int start, int end, int hash) {
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        while (slots[slot] != EMPTY && !(hashes[slots[slot]] == hash && contentEquals(slots[slot], source, start, end))) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean contentEquals(int id, ByteBuffer source, int start, int end) {
+        int length = end - start;
+        if (length(id) != length) {
+            return false;
+        }
+        long entry = entries[id];
+        ByteBuffer page = pages[(int) (entry >>> 40)];
+        int offset = (int) (entry >>> 16 & 0xFFFFFF);
+        for (int i = 0; i < length; i++) {
+            if (page.get(offset + i) != source.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int insert(int slot, int hash, ByteBuffer source, int start, int end) {
+        int length = end - start;
+        if (length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Value longer than " + MAX_LENGTH + " bytes");
+        }
+        // An empty value still needs a page to point into, also when it is the first one
+        if (pageCount == 0 || pageOffset + length > PAGE_SIZE) {
+            addPage();
+        }
+        ByteBuffer page = pages[pageCount - 1];
+        page.put(pageOffset, source, start, length);
+
+        int id = size++;
+        if (id == entries.length) {
+            hashes = Arrays.copyOf(hashes, id * 2);
+            entries = Arrays.copyOf(entries, id * 2);
+        }
+        hashes[id] = hash;
+        long[] current = entries;
+        current[id] = (long) (pageCount - 1) << 40 | (long) pageOffset << 16 | length;
+        // Re-publish so that lock-free readers in other threads see the new entry with its bytes
+        entries = current;
+        pageOffset += length;
+
+        slots[slot] = id;
+        // Keep the load factor at or below 0.5 so probe sequences stay short
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void addPage() {
+        ByteBuffer[] current = pages;
+        if (pageCount == current.length) {
+            current = Arrays.copyOf(current, pageCount * 2);
+        }
+        current[pageCount++] = ByteBuffer.allocateDirect(PAGE_SIZE);
+        pages = current;
+        pageOffset = 0;
+    }
+
+    private void rehash() {
+        slots = newSlots(slots.length * 2);
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (slots[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id;
+        }
+    }
+
+    private static int hash(ByteBuffer source, int start, int end) {
+        int h = 1;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + source.get(i);
+        }
+        return mix(h);
+    }
+
+    // Keys such as card numbers and IBANs differ in their last digits, which the polynomial leaves in nearby
+    // values; spread them over all bits so that linear probing does not run into long clusters
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean sameIgnoringCase(byte a, byte b) {
+        return a == b || (a | 0x20) == (b | 0x20) && (a | 0x20) >= 'a' && (a | 0x20) <= 'z';
+    }
+
+    private static int[] newSlots(int capacity) {
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        return slots;
+    }
+
+    final class View implements CharSequence {
+        private int id = NOT_FOUND;
+
+        private View() {
+        }
+
+        View reset(int id) {
+            this.id = id;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return id < 0 ? 0 : StringDictionary.this.length(id);
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (byteAt(id, index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return StringDictionary.this.toString(id);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package org.example;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Validates transactions one at a time against the users, the BIN table and everything approved so far.
+ * <p>
+ * All state a decision depends on lives here, so the batch and the streaming pipelines produce the same events
+ * regardless of how the transactions are fed in.
+ */
+final class TransactionEngine {
+
+    private final UserRegistry users;
+    private final Dictionaries dictionaries;
+    private final TransactionIdSet uniqueTransactionIds;
+    private final AccountOwnershipIndex accountOwners;
+    private final DepositAccountIndex depositAccounts = new DepositAccountIndex();
+    private final PipelineMetrics.Recorder metrics;
+    private final RuleChain rules;
+    private final RuleContext ruleContext;
+    private Consumer<Transaction> approvalListener;
+
+    TransactionEngine(UserRegistry users, BinRangeIndex binIndex) {
+        this(users, binIndex, PipelineMetrics.disabled());
+    }
+
+    TransactionEngine(UserRegistry users, BinRangeIndex binIndex, PipelineMetrics metrics) {
+        this(users, binIndex, new TransactionIdSet(), metrics);
+    }
+
+    TransactionEngine(UserRegistry users, BinRangeIndex binIndex, TransactionIdSet transactionIds,
+                      PipelineMetrics metrics) {
+        this(users, new CardLookupCache(binIndex), transactionIds,
+                new AccountOwnershipIndex(users.getDictionaries().getAccounts()), metrics);
+    }
+
+    /**
+     * An engine for the sharded pipeline, which looks users up and checks transaction ID uniqueness itself and
+     * only calls {@link #validate}. The shards share one card lookup cache.
+     */
+    TransactionEngine(UserRegistry users, CardLookupCache cardLookups, AccountOwnershipIndex accountOwners,
+                      PipelineMetrics metrics) {
+        this(users, cardLookups, null, accountOwners, metrics);
+    }
+
+    private TransactionEngine(UserRegistry users, CardLookupCache cardLookups, TransactionIdSet transactionIds,
+                              AccountOwnershipIndex accountOwners, PipelineMetrics metrics) {
+        this.users = users;
+        this.dictionaries = users.getDictionaries();
+        this.uniqueTransactionIds = transactionIds;
+        this.accountOwners = accountOwners;
+        this.metrics = metrics.newRecorder();
+        this.rules = new RuleChain(rules());
+        this.ruleContext = new RuleContext(cardLookups, dictionaries.getAccounts());
+        metrics.setCardLookups(cardLookups);
+    }
+
+    /**
+     * The checks after user lookup and transaction ID uniqueness, in priority order.
+     */
+    List<TransactionRule> rules() {
+        return List.of(
+                // Find if the user is frozen
+                TransactionRule.of(ValidationRule.USER_FROZEN,
+                        context -> context.getUser().getFrozen() == 1),
+
+                //Validate payment method:
+                TransactionRule.of(ValidationRule.INVALID_PAYMENT_METHOD,
+                        context -> !isValidPaymentMethod(context)),
+
+                //Confirm that the country of the card or account used for the transaction matches the user's country
+                // (the BIN lookup is shared with the payment method check)
+                TransactionRule.of(ValidationRule.COUNTRY_MISMATCH,
+                        context -> !isTransactionCountryMatchingUserCountry(context)),
+
+                // Validate that the amount is a valid (positive) number and within deposit/withdraw limits
+                TransactionRule.of(ValidationRule.INVALID_AMOUNT,
+                        context -> !isValidAmount(context.getTransaction(), context.getUser())),
+
+                // For withdrawals, validate that the user has a sufficient balance
+                TransactionRule.of(ValidationRule.INSUFFICIENT_BALANCE,
+                        context -> context.getTransaction().getType() == Dictionaries.WITHDRAWAL
+                                && !hasSufficientBalance(context.getUser(), context.getTransaction().getAmount())),
+
+                // Allow withdrawals only with the same payment account that has previously been successfully used for deposit
+                TransactionRule.of(ValidationRule.WITHDRAWAL_NOT_ALLOWED,
+                        context -> context.getTransaction().getType() == Dictionaries.WITHDRAWAL
+                                && !isWithdrawalAllowed(context.getUser(), context.getTransaction())),
+
+                // Transaction type that isn't deposit or withdrawal should be declined
+                TransactionRule.of(ValidationRule.INVALID_TRANSACTION_TYPE,
+                        context -> context.getTransaction().getType() != Dictionaries.DEPOSIT
+                                && context.getTransaction().getType() != Dictionaries.WITHDRAWAL),
+
+                // Users cannot share IBAN/card
+                TransactionRule.of(ValidationRule.PAYMENT_ACCOUNT_IN_USE,
+                        context -> !accountOwners.canUse(context.getTransaction())));
+    }
+
+    /**
+     * The dictionaries transactions for this engine have to be read into, those of its users.
+     */
+    Dictionaries getDictionaries() {
+        return dictionaries;
+    }
+
+    Event process(Transaction transaction) {
+        metrics.startSample();
+        long startedAt = metrics.now();
+
+        // Find if the user associated with the transaction
+        long checkedAt = metrics.now();
+        User user = users.find(transaction.getUserId());
+        metrics.recordRule(ValidationRule.USER_NOT_FOUND, checkedAt, user == null);
+        if (user == null) {
+            metrics.recordStage(PipelineMetrics.Stage.VALIDATE, startedAt);
+            return declined(transaction, ValidationRule.USER_NOT_FOUND.getMessage());
+        }
+
+        // Validate transaction ID uniqueness
+        checkedAt = metrics.now();
+        boolean duplicate = !uniqueTransactionIds.add(transaction.getTransactionId());
+        metrics.recordRule(ValidationRule.TRANSACTION_ID_NOT_UNIQUE, checkedAt, duplicate);
+        Event event = duplicate
+                ? declined(transaction, ValidationRule.TRANSACTION_ID_NOT_UNIQUE.getMessage())
+                : applyUserRules(transaction, user);
+        metrics.recordStage(PipelineMetrics.Stage.VALIDATE, startedAt);
+        return event;
+    }
+
+    /**
+     * Runs every check after user lookup and transaction ID uniqueness. The sharded engine resolves those two
+     * itself, in the order of the input, and calls this directly.
+     */
+    Event validate(Transaction transaction, User user) {
+        metrics.startSample();
+        long startedAt = metrics.now();
+        Event event = applyUserRules(transaction, user);
+        metrics.recordStage(PipelineMetrics.Stage.VALIDATE, startedAt);
+        return event;
+    }
+
+    private Event applyUserRules(Transaction transaction, User user) {
+        // The account may have been claimed by an approval since the transaction was read
+        accountOwners.resolve(transaction);
+        ValidationRule declinedBy = rules.firstRejection(ruleContext.reset(transaction, user), metrics);
+        if (declinedBy != null) {
+            return declined(transaction, declinedBy.getMessage());
+        }
+
+        // Transaction passed every check: apply it to the balance, and from now on its payment account belongs to
+        // this user
+        applyToBalance(transaction, user);
+        restoreApproval(transaction);
+        if (approvalListener != null) {
+            approvalListener.accept(transaction);
+        }
+        return approved(transaction);
+    }
+
+    /**
+     * Adds a listener called with every transaction that passes all checks, after the engine has applied it.
+     */
+    void onApproval(Consumer<Transaction> listener) {
+        approvalListener = approvalListener == null ? listener : approvalListener.andThen(listener);
+    }
+
+    /**
+     * Records what an approved transaction leaves behind for later ones (its account owner and, for deposits, the
+     * deposit account) without validating it again, e.g. when resuming from a checkpoint. The balance is left
+     * alone, the checkpoint restores balances itself.
+     */
+    void restoreApproval(Transaction transaction) {
+        accountOwners.claim(transaction);
+        if (transaction.getType() == Dictionaries.DEPOSIT) {
+            depositAccounts.recordDeposit(transaction.getUserId(), transaction.getMethod(),
+                    transaction.getAccountNumber());
+        }
+    }
+
+    static Event declined(Transaction transaction, String message) {
+        Event event = new Event();
+        event.transactionId = transaction.getTransactionId();
+        event.status = Event.STATUS_DECLINED;
+        event.message = message;
+        return event;
+    }
+
+    static Event approved(Transaction transaction) {
+        Event event = new Event();
+        event.transactionId = transaction.getTransactionId();
+        event.status = Event.STATUS_APPROVED;
+        event.message = "OK";
+        return event;
+    }
+
+    // Deposits add to the balance and withdrawals take from it, in place; the balance keeps the finer display scale
+    // of the two, as BigDecimal.add did
+    private static void applyToBalance(Transaction transaction, User user) {
+        long amount = transaction.getAmount();
+        user.setBalance(Money.add(user.getBalance(),
+                transaction.getType() == Dictionaries.WITHDRAWAL ? -amount : amount));
+        user.setBalanceScale(Math.max(user.getBalanceScale(), transaction.getAmountScale()));
+    }
+
+    private boolean isWithdrawalAllowed(User user, Transaction transaction) {
+        return depositAccounts.hasDeposited(transaction.getUserId(), transaction.getMethod(),
+                transaction.getAccountNumber());
+    }
+
+    private static boolean hasSufficientBalance(User user, long amount) {
+        return user.getBalance() >= amount;
+    }
+
+    private boolean isValidAmount(Transaction transaction, User user) {
+        long amount = transaction.getAmount();
+        int type = transaction.getType();
+
+        StringDictionary codes = dictionaries.getCodes();
+        if (type < 0 || codes.length(type) == 0) {
+            return false;
+        }
+
+        if (amount <= 0) {
+            return false;
+        }
+
+        if (codes.equalsIgnoreCase(type, Dictionaries.DEPOSIT)) {
+            return amount >= user.getDepositMin() && amount <= user.getDepositMax();
+        } else if (codes.equalsIgnoreCase(type, Dictionaries.WITHDRAWAL)) {
+            return amount >= user.getWithdrawMin() && amount <= user.getWithdrawMax();
+        }
+        return false;
+    }
+
+    private boolean isTransactionCountryMatchingUserCountry(RuleContext context) {
+        int method = context.getTransaction().getMethod();
+        int userCountry = context.getUser().getCountry();
+        if (method == Dictionaries.TRANSFER) {
+            return isIbanCountry(context.getAccountNumber(), userCountry);
+        } else if (method == Dictionaries.CARD) {
+            return dictionaries.getCountries().equalsIgnoreCase(userCountry, getCardCountry(context));
+        } else {
+            return false;
+        }
+    }
+
+    // An IBAN starts with its two-letter country code, after the whitespace the IBAN check skips as well
+    private boolean isIbanCountry(CharSequence iban, int country) {
+        int start = 0;
+        while (start < iban.length() && iban.charAt(start) <= ' ') {
+            start++;
+        }
+        StringDictionary countries = dictionaries.getCountries();
+        return countries.length(country) == 2 && countries.regionMatchesIgnoreCase(country, iban, start);
+    }
+
+    // The user's country when one of the card's ranges is a debit card of it, as the payment method check accepts
+    private static int getCardCountry(RuleContext context) {
+        if (context.isDebitCardOf(context.getUser().getCountry())) {
+            return context.getUser().getCountry();
+        }
+        BinMapping binMapping = context.getBinMapping();
+        return binMapping != null ? binMapping.getCountry() : -1;
+    }
+
+    private static boolean isValidPaymentMethod(RuleContext context) {
+        int method = context.getTransaction().getMethod();
+
+        if (method == Dictionaries.TRANSFER) {
+            return IbanValidator.isValid(context.getAccountNumber());
+        } else if (method == Dictionaries.CARD) {
+            return isValidDebitCard(context);
+        } else {
+            return false;
+        }
+    }
+
+    private static boolean isValidDebitCard(RuleContext context) {
+        return context.isDebitCardOf(context.getUser().getCountry());
+    }
+}
@@ -0,0 +1,247 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Exact set of the transaction IDs seen so far, built for hundreds of millions of IDs.
+ * <p>
+ * Every ID is hashed to 64 bits and stored once, as UTF-8 with a length prefix, in an append-only log. The
+ * open-addressing table holds 16 bytes per slot: the hash and the ID's position in the log. Lookups compare
+ * hashes, and only a matching hash (a duplicate, or a 64-bit collision once in billions) is verified against the
+ * logged bytes, so detection stays exact. Growing the table reuses the stored hashes and never touches the log.
+ * <p>
+ * Memory is off-heap and predictable: 16 bytes per slot with at least a quarter of the slots free, plus each ID
+ * in UTF-8 with a 2-byte length. With a spill directory both are memory-mapped from deleted temporary files there
+ * instead, so the OS can page them out to disk rather than holding them in RAM. Not thread-safe.
+ */
+final class TransactionIdSet {
+
+    private static final int SLOT_BYTES = 16;
+    private static final int SEGMENT_SLOTS = 1 << 22;
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    private static final int FIRST_PAGE_SIZE = 1 << 20;
+    private static final int MAX_PAGE_SIZE = 1 << 26;
+    private static final int MAX_LENGTH = 0xFFFF;
+    private static final long EMPTY = 0;
+
+    // Null: direct buffers
+    private final Path spillDirectory;
+    private ByteBuffer[] segments;
+    private long capacity;
+    private long size;
+    private ByteBuffer[] pages = new ByteBuffer[0];
+    // Bytes used in each page; the last page is still being filled and uses pageOffset
+    private int[] pageEnds = new int[0];
+    private int pageOffset;
+    private byte[] bytes = new byte[64];
+
+    TransactionIdSet() {
+        this(null);
+    }
+
+    TransactionIdSet(Path spillDirectory) {
+        this.spillDirectory = spillDirectory;
+        capacity = INITIAL_CAPACITY;
+        segments = allocateTable(capacity);
+    }
+
+    /**
+     * Adds the ID, returning false when it was already present.
+     */
+    boolean add(String transactionId) {
+        return add(encode(transactionId));
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Position after the last ID logged so far, to be passed to {@link #writeLog} later.
+     */
+    long logEnd() {
+        return (long) Math.max(pages.length - 1, 0) << 32 | pageOffset;
+    }
+
+    /**
+     * Writes the log entries added since {@code from} (a {@link #logEnd} result, 0 for all of them), so that a
+     * checkpoint only appends what is new.
+     */
+    void writeLog(long from, WritableByteChannel out) throws IOException {
+        for (int page = (int) (from >>> 32); page < pages.length; page++) {
+            int start = page == (int) (from >>> 32) ? (int) from : 0;
+            int end = page == pages.length - 1 ? pageOffset : pageEnds[page];
+            ByteBuffer entries = pages[page].slice(start, end - start);
+            while (entries.hasRemaining()) {
+                out.write(entries);
+            }
+        }
+    }
+
+    /**
+     * Adds every ID of log entries written by {@link #writeLog}.
+     */
+    void addLogged(ByteBuffer log) {
+        while (log.hasRemaining()) {
+            int length = log.getShort() & MAX_LENGTH;
+            if (bytes.length < length) {
+                bytes = new byte[length];
+            }
+            log.get(bytes, 0, length);
+            add(length);
+        }
+    }
+
+    private boolean add(int length) {
+        long hash = hash(bytes, length);
+        long mask = capacity - 1;
+        for (long slot = hash & mask; ; slot = (slot + 1) & mask) {
+            ByteBuffer segment = segments[(int) (slot / SEGMENT_SLOTS)];
+            int position = (int) (slot % SEGMENT_SLOTS) * SLOT_BYTES;
+            long stored = segment.getLong(position);
+            if (stored == EMPTY) {
+                segment.putLong(position, hash);
+                segment.putLong(position + Long.BYTES, append(length));
+                // A load factor of 0.75 keeps linear probing short while wasting less memory than the usual 0.5
+                if (++size * 4 > capacity * 3) {
+                    grow();
+                }
+                return true;
+            }
+            if (stored == hash && matches(segment.getLong(position + Long.BYTES), length)) {
+                return false;
+            }
+        }
+    }
+
+    private int encode(String transactionId) {
+        int length = transactionId.length();
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            char c = transactionId.charAt(i);
+            if (c >= 0x80) {
+                byte[] utf8 = transactionId.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length < utf8.length) {
+                    bytes = new byte[utf8.length];
+                }
+                System.arraycopy(utf8, 0, bytes, 0, utf8.length);
+                length = utf8.length;
+                break;
+            }
+            bytes[i] = (byte) c;
+        }
+        if (length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Transaction ID longer than " + MAX_LENGTH + " bytes");
+        }
+        return length;
+    }
+
+    // Appends the encoded ID to the log, returning its page and offset
+    private long append(int length) {
+        if (pages.length == 0 || pageOffset + 2 + length > pages[pages.length - 1].capacity()) {
+            int pageSize = pages.length == 0 ? FIRST_PAGE_SIZE
+                    : Math.min(pages[pages.length - 1].capacity() * 2, MAX_PAGE_SIZE);
+            pageEnds = Arrays.copyOf(pageEnds, pages.length + 1);
+            if (pages.length > 0) {
+                pageEnds[pages.length - 1] = pageOffset;
+            }
+            pages = Arrays.copyOf(pages, pages.length + 1);
+            pages[pages.length - 1] = allocate(Math.max(pageSize, 2 + length));
+            pageOffset = 0;
+        }
+        ByteBuffer page = pages[pages.length - 1];
+        long location = (long) (pages.length - 1) << 32 | pageOffset;
+        page.putShort(pageOffset, (short) length);
+        page.put(pageOffset + 2, bytes, 0, length);
+        pageOffset += 2 + length;
+        return location;
+    }
+
+    private boolean matches(long location, int length) {
+        ByteBuffer page = pages[(int) (location >>> 32)];
+        int offset = (int) location;
+        if ((page.getShort(offset) & MAX_LENGTH) != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (page.get(offset + 2 + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void grow() {
+        ByteBuffer[] old = segments;
+        long oldCapacity = capacity;
+        capacity *= 2;
+        segments = allocateTable(capacity);
+        long mask = capacity - 1;
+        for (long slot = 0; slot < oldCapacity; slot++) {
+            ByteBuffer from = old[(int) (slot / SEGMENT_SLOTS)];
+            int position = (int) (slot % SEGMENT_SLOTS) * SLOT_BYTES;
+            long hash = from.getLong(position);
+            if (hash == EMPTY) {
+                continue;
+            }
+            long target = hash & mask;
+            ByteBuffer to = segments[(int) (target / SEGMENT_SLOTS)];
+            int targetPosition = (int) (target % SEGMENT_SLOTS) * SLOT_BYTES;
+            while (to.getLong(targetPosition) != EMPTY) {
+                target = (target + 1) & mask;
+                to = segments[(int) (target / SEGMENT_SLOTS)];
+                targetPosition = (int) (target % SEGMENT_SLOTS) * SLOT_BYTES;
+            }
+            to.putLong(targetPosition, hash);
+            to.putLong(targetPosition + Long.BYTES, from.getLong(position + Long.BYTES));
+        }
+    }
+
+    private ByteBuffer[] allocateTable(long slots) {
+        ByteBuffer[] table = new ByteBuffer[(int) Math.max(slots / SEGMENT_SLOTS, 1)];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = allocate((int) Math.min(slots, SEGMENT_SLOTS) * SLOT_BYTES);
+        }
+        return table;
+    }
+
+    // Zero-filled memory, either direct or mapped from a temporary file that is deleted right away
+    private ByteBuffer allocate(int size) {
+        if (spillDirectory == null) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        try {
+            Path file = Files.createTempFile(spillDirectory, "transaction-ids", ".bin");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE)) {
+                // The mapping stays valid after the channel is closed and the file deleted
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not spill transaction IDs to " + spillDirectory, e);
+        }
+    }
+
+    // 64-bit FNV-1a with a final avalanche, so that the low bits used for the slot depend on every byte
+    private static long hash(byte[] bytes, int length) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < length; i++) {
+            h = (h ^ bytes[i]) * 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h == EMPTY ? 1 : h;
+    }
+}
@@ -2,17 +2,14 @@ package org.example;
 
 import lombok.Data;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class TransactionProcessor {
 
@@ -22,461 +19,446 @@ public class TransactionProcessor {
     private static final Path BALANCES_CSV_PATH = Paths.get("/Users/olegtrofimov/IdeaProjects/Playtech Java Assignment 2024 1/test-data/test random data 50% validations/output example/balances.csv");
     private static final Path EVENTS_CSV_PATH = Paths.get("/Users/olegtrofimov/IdeaProjects/Playtech Java Assignment 2024 1/test-data/test random data 50% validations/output example/events.csv");
 
-    public static void main(final String[] args) throws IOException {
-        List<User> users = readUsers();
-        List<Transaction> transactions = readTransactions();
-        long startTime = System.currentTimeMillis();
-        List<BinMapping> binMappings = readBinMappings();
-        long endTime = System.currentTimeMillis();
-        System.out.println("Execution time for readBinMappings(): " + (endTime - startTime) + " milliseconds");
-
-        List<Event> events = processTransactions(users, transactions, binMappings);
-
-        writeBalances(users);
-        writeEvents(events);
-    }
+    private static final String EVENTS_HEADER = "transaction_id,status,message\n";
+    static final String BALANCES_HEADER = "user_id,balance\n";
 
-    private static List<User> readUsers() {
-        List<User> users = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(TransactionProcessor.USERS_CSV_PATH.toFile()))) {
-            String header = reader.readLine();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length != 9) {
-                    continue;
-                }
-                try {
-                    String userId = parts[0];
-                    String username = parts[1];
-                    BigDecimal balance = new BigDecimal(parts[2]);
-                    String country = parts[3];
-                    int frozen = Integer.parseInt(parts[4]);
-                    double depositMin = Double.parseDouble(parts[5]);
-                    double depositMax = Double.parseDouble(parts[6]);
-                    double withdrawMin = Double.parseDouble(parts[7]);
-                    double withdrawMax = Double.parseDouble(parts[8]);
-
-                    User user = new User(userId, username, balance, country, frozen, depositMin, depositMax, withdrawMin, withdrawMax);
-                    users.add(user);
-                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
-                    e.printStackTrace();
+    public static void main(final String[] args) throws IOException {
+        boolean streaming = false;
+        boolean backgroundWriter = false;
+        int shards = 0;
+        Path metricsPath = null;
+        Path snapshotPath = null;
+        Path watchDirectory = null;
+        Path spillDirectory = null;
+        Path checkpointDirectory = null;
+        Path balanceJournalPath = null;
+        long checkpointInterval = 60;
+        int listenPort = -1;
+        long metricsInterval = 0;
+        Path usersPath = USERS_CSV_PATH;
+        Path transactionsPath = TRANSACTIONS_CSV_PATH;
+        Path binMappingsPath = BIN_MAPPINGS_CSV_PATH;
+        Path balancesPath = BALANCES_CSV_PATH;
+        Path eventsPath = EVENTS_CSV_PATH;
+        for (String arg : args) {
+            if ("--stream".equals(arg)) {
+                streaming = true;
+            } else if ("--background-writer".equals(arg)) {
+                backgroundWriter = true;
+            } else if ("--parallel".equals(arg)) {
+                shards = Runtime.getRuntime().availableProcessors();
+            } else if (arg.startsWith("--parallel=")) {
+                shards = parseShards(arg.substring("--parallel=".length()));
+                if (shards < 1) {
+                    System.err.println("Usage: --parallel=<n> needs a whole number of shards of at least 1, got "
+                            + arg.substring("--parallel=".length()));
+                    System.exit(2);
                 }
+            } else if (arg.startsWith("--watch=")) {
+                watchDirectory = Paths.get(arg.substring("--watch=".length()));
+            } else if (arg.startsWith("--listen=")) {
+                listenPort = Integer.parseInt(arg.substring("--listen=".length()));
+            } else if (arg.startsWith("--dedup-spill=")) {
+                spillDirectory = Paths.get(arg.substring("--dedup-spill=".length()));
+            } else if (arg.startsWith("--checkpoint=")) {
+                checkpointDirectory = Paths.get(arg.substring("--checkpoint=".length()));
+            } else if (arg.startsWith("--checkpoint-interval=")) {
+                checkpointInterval = Long.parseLong(arg.substring("--checkpoint-interval=".length()));
+            } else if (arg.startsWith("--balance-journal=")) {
+                balanceJournalPath = Paths.get(arg.substring("--balance-journal=".length()));
+            } else if (arg.startsWith("--snapshot=")) {
+                snapshotPath = Paths.get(arg.substring("--snapshot=".length()));
+            } else if (arg.startsWith("--metrics=")) {
+                metricsPath = Paths.get(arg.substring("--metrics=".length()));
+            } else if (arg.startsWith("--metrics-interval=")) {
+                metricsInterval = Long.parseLong(arg.substring("--metrics-interval=".length()));
+            } else if (arg.startsWith("--input=")) {
+                Path inputDirectory = Paths.get(arg.substring("--input=".length()));
+                usersPath = inputDirectory.resolve(USERS_CSV_PATH.getFileName().toString());
+                transactionsPath = inputDirectory.resolve(TRANSACTIONS_CSV_PATH.getFileName().toString());
+                binMappingsPath = inputDirectory.resolve(BIN_MAPPINGS_CSV_PATH.getFileName().toString());
+            } else if (arg.startsWith("--output=")) {
+                Path outputDirectory = Paths.get(arg.substring("--output=".length()));
+                balancesPath = outputDirectory.resolve(BALANCES_CSV_PATH.getFileName().toString());
+                eventsPath = outputDirectory.resolve(EVENTS_CSV_PATH.getFileName().toString());
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return users;
-    }
+        // Serving, checkpointing and sharding each run the transactions their own way, so only one of them can apply
+        String servingOption = watchDirectory != null ? "--watch" : listenPort >= 0 ? "--listen" : null;
+        if (servingOption != null && checkpointDirectory != null) {
+            System.err.println("Usage: " + servingOption + " cannot be combined with --checkpoint");
+            System.exit(2);
+        }
+        if (shards > 0 && (servingOption != null || checkpointDirectory != null)) {
+            System.err.println("Usage: --parallel cannot be combined with "
+                    + (servingOption != null ? servingOption : "--checkpoint"));
+            System.exit(2);
+        }
+        PipelineMetrics metrics = metricsPath != null ? PipelineMetrics.enabled() : PipelineMetrics.disabled();
+        MetricsReporter reporter = metricsPath != null ? new MetricsReporter(metrics, metricsPath, metricsInterval) : null;
+
+        Dictionaries dictionaries = new Dictionaries();
+        UserRegistry users;
+        BinRangeIndex binIndex;
+        if (snapshotPath != null) {
+            long startTime = System.currentTimeMillis();
+            ReferenceSnapshot snapshot = ReferenceSnapshot.loadOrBuild(snapshotPath, usersPath,
+                    binMappingsPath, dictionaries);
+            users = snapshot.getUsers();
+            binIndex = snapshot.getBinIndex();
+            long endTime = System.currentTimeMillis();
+            System.out.println("Execution time for loading reference data: " + (endTime - startTime) + " milliseconds");
+        } else {
+            users = readUsers(usersPath, dictionaries);
+            long startTime = System.currentTimeMillis();
+            binIndex = readBinMappings(binMappingsPath, dictionaries);
+            long endTime = System.currentTimeMillis();
+            System.out.println("Execution time for readBinMappings(): " + (endTime - startTime) + " milliseconds");
+        }
 
-    private static List<Transaction> readTransactions() {
-        List<Transaction> transactions = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(TransactionProcessor.TRANSACTIONS_CSV_PATH.toFile()))) {
-            String header = reader.readLine();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length != 6) {
-                    continue;
-                }
-                try {
-                    String transactionId = parts[0];
-                    String userId = parts[1];
-                    String type = parts[2];
-                    BigDecimal amount = new BigDecimal(parts[3]);
-                    String method = parts[4];
-                    String accountNumber = parts[5];
-
-                    Transaction transaction = new Transaction(transactionId, userId, type, amount, method, accountNumber);
-                    transactions.add(transaction);
-                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
-                    e.printStackTrace();
-                }
+        TransactionIdSet transactionIds = new TransactionIdSet(spillDirectory);
+        boolean serving = watchDirectory != null || listenPort >= 0;
+        BalanceJournal balanceJournal = null;
+        if (balanceJournalPath != null) {
+            balanceJournal = BalanceJournal.open(balanceJournalPath, usersPath, users);
+            if (checkpointDirectory == null) {
+                // A checkpointed run starts or resumes the journal along with its checkpoint
+                balanceJournal.start();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return transactions;
+        if (serving) {
+            serve(eventsPath, newEngine(users, binIndex, transactionIds, metrics, balanceJournal), metrics,
+                    watchDirectory, listenPort, backgroundWriter);
+        } else if (checkpointDirectory != null) {
+            streamTransactionsWithCheckpoints(usersPath, binMappingsPath, transactionsPath, eventsPath,
+                    newEngine(users, binIndex, transactionIds, metrics, balanceJournal), users, transactionIds,
+                    balanceJournal, metrics, backgroundWriter, checkpointDirectory, checkpointInterval);
+        } else if (shards > 0) {
+            streamTransactionsInParallel(transactionsPath, eventsPath, users, binIndex, spillDirectory,
+                    balanceJournal, shards, metrics, backgroundWriter);
+        } else if (streaming) {
+            streamTransactions(transactionsPath, eventsPath,
+                    newEngine(users, binIndex, transactionIds, metrics, balanceJournal), metrics, backgroundWriter);
+        } else {
+            List<Transaction> transactions = readTransactions(transactionsPath, dictionaries, metrics);
+            List<Event> events = processTransactions(newEngine(users, binIndex, transactionIds, metrics,
+                    balanceJournal), transactions);
+            writeEvents(eventsPath, events, metrics, backgroundWriter);
+        }
+        if (balanceJournal != null) {
+            balanceJournal.writeBalances(balancesPath);
+            balanceJournal.close();
+        } else {
+            writeBalances(balancesPath, users);
+        }
+        if (checkpointDirectory != null) {
+            // Finished, the next run starts over
+            Checkpoint.delete(checkpointDirectory);
+        }
+        if (reporter != null) {
+            reporter.close();
+        }
     }
 
-    private static List<BinMapping> readBinMappings() {
-        List<BinMapping> binMappings = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(TransactionProcessor.BIN_MAPPINGS_CSV_PATH.toFile()))) {
-            String header = reader.readLine();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length != 5) {
-                    continue;
-                }
-                String name = parts[0];
-                long rangeFrom = Long.parseLong(parts[1]);
-                long rangeTo = Long.parseLong(parts[2]);
-                String type = parts[3];
-                String country = parts[4];
-
-                BinMapping binMapping = new BinMapping(name, rangeFrom, rangeTo, type, country);
-                binMappings.add(binMapping);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+    // Returns 0 for anything that is not a whole number, so main reports it like any other invalid count
+    private static int parseShards(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
         }
-        return binMappings;
     }
 
-    private static List<Event> processTransactions(final List<User> users,
-                                                   final List<Transaction> transactions,
-                                                   final List<BinMapping> binMappings) {
-        List<Event> events = new ArrayList<>();
-        Set<String> uniqueTransactionIds = new HashSet<>();
-
-        for (Transaction transaction : transactions) {
-            Event event = new Event();
-            event.transactionId = transaction.getTransactionId();
-
-            // Find if the user associated with the transaction
-            User user = findUserById(users, transaction.getUserId());
-            if (user == null) {
-                event.status = Event.STATUS_DECLINED;
-                event.message = "User not found";
-                events.add(event);
-                continue;
-            }
-
-            // Validate transaction ID uniqueness
-            if (!uniqueTransactionIds.add(transaction.getTransactionId())) {
-                event.status = Event.STATUS_DECLINED;
-                event.message = "Transaction ID is not unique";
-                events.add(event);
-                continue;
-            }
-
-            // Find if the user is frozen
-            if (user.getFrozen() == 1) {
-                event.status = Event.STATUS_DECLINED;
-                event.message = "User is frozen";
-                events.add(event);
-                continue;
-            }
-
-            //Validate payment method:
-            if (!isValidPaymentMethod(transaction, binMappings, user.getCountry())) {
-                event.status = Event.STATUS_DECLINED;
-                event.message = "Invalid payment method";
-                events.add(event);
-                continue;
-            }
-
-            //Confirm that the country of the card or account used for the transaction matches the user's country
-            if (!isTransactionCountryMatchingUserCountry(transaction, user.getCountry())) {
-                event.status = Event.STATUS_DECLINED;
-                event.message = "Country mismatch";
-                events.add(event);
-                continue;
-            }
-
-            // Validate that the amount is a valid (positive) number and within deposit/withdraw limits
-            if (!isValidAmount(transaction, users)) {
-                event.status = Event.STATUS_DECLINED;
-                event.message = "Invalid amount";
-                events.add(event);
-                continue;
-            }
-
-            // For withdrawals, validate that the user has a sufficient balance
-            if ("WITHDRAWAL".equals(transaction.getType()) && !hasSufficientBalance(user, transaction.getAmount())) {
-                event.status = Event.STATUS_DECLINED;
-                event.message = "Insufficient balance";
-                events.add(event);
-                continue;
-            }
-
-            // Allow withdrawals only with the same payment account that has previously been successfully used for deposit
-            if ("WITHDRAWAL".equals(transaction.getType()) && !isWithdrawalAllowed(user, transaction, transactions)) {
-                event.status = Event.STATUS_DECLINED;
-                event.message = "Withdrawal not allowed";
-                events.add(event);
-                continue;
-            }
-
-            // Transaction type that isn't deposit or withdrawal should be declined
-            if (!"DEPOSIT".equals(transaction.getType()) && !"WITHDRAWAL".equals(transaction.getType())) {
-                event.status = Event.STATUS_DECLINED;
-                event.message = "Invalid transaction type";
-                events.add(event);
-                continue;
-            }
-
-            // Users cannot share IBAN/card
-            if (!isUniquePaymentAccount(transaction, users)) {
-                event.status = Event.STATUS_DECLINED;
-                event.message = "Payment account already used by another user";
-                events.add(event);
-                continue;
-            }
-            handleProcessingError(transaction, events, "Unexpected error occurred during transaction processing");
+    static UserRegistry readUsers(final Path path, final Dictionaries dictionaries) {
+        UserRegistry users = new UserRegistry(dictionaries);
+        try {
+            CsvReader.read(path, 9, record -> mapUser(record, dictionaries), users::add);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        return events;
+        return users;
     }
 
-    private static void handleProcessingError(Transaction transaction, List<Event> events, String errorMessage) {
-        Event event = new Event();
-        event.setTransactionId(transaction.getTransactionId());
-        event.setStatus(Event.STATUS_DECLINED);
-        event.setMessage(errorMessage);
-        events.add(event);
+    // Amounts are whole minor units, so digits past them are rounded off in the direction that keeps every decision
+    // the same: minimums up, maximums and the balance down. Only the written balance loses those digits. A value that
+    // is no number at all still drops the row, with its stack trace
+    static User mapUser(CsvRecord record, Dictionaries dictionaries) {
+        String userId = record.getString(0);
+        String username = record.getString(1);
+        long balance = record.getMoney(2, RoundingMode.FLOOR);
+        int balanceScale = record.getScale(2);
+        int country = record.intern(3, dictionaries.getCountries());
+        int frozen = record.getInt(4);
+        long depositMin = record.getMoney(5, RoundingMode.CEILING);
+        long depositMax = record.getMoney(6, RoundingMode.FLOOR);
+        long withdrawMin = record.getMoney(7, RoundingMode.CEILING);
+        long withdrawMax = record.getMoney(8, RoundingMode.FLOOR);
+
+        return new User(userId, username, balance, balanceScale, country, frozen,
+                depositMin, depositMax, withdrawMin, withdrawMax);
     }
 
-    private static boolean isUniquePaymentAccount(Transaction transaction, List<User> users) {
-        String accountId = transaction.getAccountNumber();
-
-        for (User user : users) {
-            if (user.getUserId().equals(transaction.getUserId())) {
-                continue;
-            }
-
-            if (hasUsedPaymentAccount(user, accountId)) {
-                return false;
-            }
-        }
-        return true;
-    }
-
-    private static boolean hasUsedPaymentAccount(User user, String accountId) {
-        List<Transaction> allTransactions = getAllTransactions();
-        for (Transaction userTransaction : allTransactions) {
-            if (userTransaction.getAccountNumber().equals(accountId) && userTransaction.getUserId().equals(user.getUserId())) {
-                return true;
-            }
-        }
-        return false;
+    static List<Transaction> readTransactions(final Path path, final Dictionaries dictionaries) {
+        return readTransactions(path, dictionaries, PipelineMetrics.disabled());
     }
 
-    private static List<Transaction> getAllTransactions() {
+    static List<Transaction> readTransactions(final Path path, final Dictionaries dictionaries,
+                                              final PipelineMetrics metrics) {
         List<Transaction> transactions = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(TransactionProcessor.TRANSACTIONS_CSV_PATH.toFile()))) {
-            reader.readLine();
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length != 6) {
-                    continue;
-                }
-                String transactionId = parts[0];
-                String userId = parts[1];
-                String type = parts[2];
-                BigDecimal amount = new BigDecimal(parts[3]);
-                String method = parts[4];
-                String accountNumber = parts[5];
-
-                Transaction transaction = new Transaction(transactionId, userId, type, amount, method, accountNumber);
-                transactions.add(transaction);
-            }
+        try {
+            CsvReader.read(path, 6, transactionMapper(dictionaries, metrics.newRecorder()), transactions::add);
         } catch (IOException e) {
             e.printStackTrace();
         }
         return transactions;
     }
 
-    private static boolean isWithdrawalAllowed(User user, Transaction transaction, List<Transaction> transactions) {
-        if (!"WITHDRAW".equals(transaction.getType())) {
-            return false;
+    static Transaction mapTransaction(CsvRecord record, Dictionaries dictionaries) {
+        String transactionId = record.getString(0);
+        // Unknown users and accounts no approval has claimed yet are looked up, not interned
+        int userId = record.find(1, dictionaries.getUserIds());
+        int type = record.intern(2, dictionaries.getCodes());
+        // An amount minor units cannot hold exactly, or no number at all, reads as 0 and is declined as invalid
+        long amount = 0;
+        int amountScale = 0;
+        try {
+            amount = record.getMoney(3);
+            amountScale = record.getScale(3);
+        } catch (NumberFormatException e) {
+            // Left at 0, so the row still gets its event
         }
+        int method = record.intern(4, dictionaries.getCodes());
+        int accountNumber = record.find(5, dictionaries.getAccounts());
+        String newAccountNumber = accountNumber == StringDictionary.NOT_FOUND ? record.getString(5) : null;
 
-        List<Transaction> depositTransactions = getDepositTransactions(user.getUserId(), transactions);
-
-        for (Transaction depositTransaction : depositTransactions) {
-            if (depositTransaction.getMethod().equals(transaction.getMethod()) &&
-                    depositTransaction.getAccountNumber().equals(transaction.getAccountNumber())) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private static List<Transaction> getDepositTransactions(String userId, List<Transaction> transactions) {
-        List<Transaction> depositTransactions = new ArrayList<>();
-        for (Transaction transaction : transactions) {
-            if (transaction.getUserId().equals(userId) && "DEPOSIT".equals(transaction.getType())) {
-                depositTransactions.add(transaction);
-            }
-        }
-        return depositTransactions;
+        return new Transaction(transactionId, userId, type, amount, amountScale, method, accountNumber,
+                newAccountNumber);
     }
 
-    private static boolean hasSufficientBalance(User user, BigDecimal amount) {
-        return user.getBalance().compareTo(amount) >= 0;
+    // mapTransaction with the READ stage recorded; each row starts a new sample
+    static CsvReader.RecordMapper<Transaction> transactionMapper(final Dictionaries dictionaries,
+                                                                 final PipelineMetrics.Recorder recorder) {
+        return record -> {
+            recorder.startSample();
+            long startedAt = recorder.now();
+            Transaction transaction = mapTransaction(record, dictionaries);
+            recorder.recordStage(PipelineMetrics.Stage.READ, startedAt);
+            return transaction;
+        };
     }
 
-
-    private static boolean isValidAmount(Transaction transaction, List<User> users) {
-        BigDecimal amount = transaction.getAmount();
-        String userId = transaction.getUserId();
-        String type = transaction.getType();
-
-        if (type == null || type.isEmpty()) {
-            return false;
-        }
-
-        User user = findUserById(users, userId);
-
-        if (user == null) {
-            return false;
+    static BinRangeIndex readBinMappings(final Path path, final Dictionaries dictionaries) {
+        List<BinMapping> binMappings = new ArrayList<>();
+        try {
+            CsvReader.read(path, 5, record -> mapBinMapping(record, dictionaries), binMappings::add);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        return BinRangeIndex.build(binMappings);
+    }
 
-        if (amount.compareTo(BigDecimal.ZERO) <= 0) {
-            return false;
-        }
+    static BinMapping mapBinMapping(CsvRecord record, Dictionaries dictionaries) {
+        String name = record.getString(0);
+        long rangeFrom = record.getLong(1);
+        long rangeTo = record.getLong(2);
+        int type = record.intern(3, dictionaries.getCodes());
+        int country = record.intern(4, dictionaries.getCountries());
 
-        if ("DEPOSIT".equalsIgnoreCase(type)) {
-            return amount.compareTo(BigDecimal.valueOf(user.getDepositMin())) >= 0 &&
-                    amount.compareTo(BigDecimal.valueOf(user.getDepositMax())) <= 0;
-        } else if ("WITHDRAW".equalsIgnoreCase(type)) {
-            return amount.compareTo(BigDecimal.valueOf(user.getWithdrawMin())) >= 0 &&
-                    amount.compareTo(BigDecimal.valueOf(user.getWithdrawMax())) <= 0;
-        }
-        return false;
+        return new BinMapping(name, rangeFrom, rangeTo, type, country);
     }
 
-
-    private static boolean isTransactionCountryMatchingUserCountry(Transaction transaction, String userCountry) {
-        String transactionCountry = getTransactionCountry(transaction);
-        return userCountry.equalsIgnoreCase(transactionCountry);
+    static List<Event> processTransactions(final UserRegistry users,
+                                           final List<Transaction> transactions,
+                                           final BinRangeIndex binIndex) {
+        return processTransactions(new TransactionEngine(users, binIndex), transactions);
     }
 
-    private static String getTransactionCountry(Transaction transaction) {
-        String method = transaction.getMethod();
-        String accountNumber = transaction.getAccountNumber();
-        if ("TRANSFER".equals(method)) {
-            return null;
-        } else if ("CARD".equals(method)) {
-            return getCardCountry(accountNumber);
-        } else {
-            return null;
+    static List<Event> processTransactions(final TransactionEngine engine, final List<Transaction> transactions) {
+        List<Event> events = new ArrayList<>();
+        for (Transaction transaction : transactions) {
+            events.add(engine.process(transaction));
         }
+        return events;
     }
 
-    private static String getCardCountry(String accountNumber) {
-        if (accountNumber.length() >= 2) {
-            return accountNumber.substring(0, 2);
-        } else {
-            return null;
+    // An engine whose approved balance changes also go to the journal, when there is one
+    static TransactionEngine newEngine(final UserRegistry users, final BinRangeIndex binIndex,
+                                       final TransactionIdSet transactionIds, final PipelineMetrics metrics,
+                                       final BalanceJournal balanceJournal) {
+        TransactionEngine engine = new TransactionEngine(users, binIndex, transactionIds, metrics);
+        if (balanceJournal != null) {
+            engine.onApproval(balanceJournal::record);
         }
+        return engine;
     }
 
-    private static boolean isValidPaymentMethod(Transaction transaction, List<BinMapping> binMappings, String userCountry) {
-        String method = transaction.getMethod();
-
-        switch (method) {
-            case "TRANSFER":
-                String accountNumber = transaction.getAccountNumber();
-                return isValidIBAN(accountNumber);
-
-            case "CARD":
-                return isValidDebitCard(transaction, binMappings, userCountry);
-
-            default:
-                return false;
+    // Reads, validates and writes one transaction at a time, so memory only depends on the users and account indexes
+    static void streamTransactions(final Path transactionsPath, final Path eventsPath,
+                                   final TransactionEngine engine, final PipelineMetrics metrics,
+                                   final boolean backgroundWriter) throws IOException {
+        PipelineMetrics.Recorder recorder = metrics.newRecorder();
+        try (final CsvWriter writer = CsvWriter.open(eventsPath, backgroundWriter)) {
+            writer.append(EVENTS_HEADER);
+            CsvReader.read(transactionsPath, 6, transactionMapper(engine.getDictionaries(), recorder),
+                    transaction -> appendEvent(writer, engine.process(transaction), recorder));
         }
     }
 
-    private static boolean isValidDebitCard(Transaction transaction, List<BinMapping> binMappings, String userCountry) {
-        String accountNumber = transaction.getAccountNumber();
-        String cardPrefix = accountNumber.substring(0, 10);
-
-        for (BinMapping binMapping : binMappings) {
-            if (binMapping.getRangeFrom() <= Long.parseLong(cardPrefix)
-                    && Long.parseLong(cardPrefix) <= binMapping.getRangeTo()) {
-                if ("DC".equals(binMapping.getType()) && binMapping.getCountry().equals(userCountry)) {
-                    return true;
-                }
+    // Same as streamTransactions, but takes a checkpoint every interval and resumes from the directory's checkpoint
+    // when it was taken for the same input
+    static void streamTransactionsWithCheckpoints(final Path usersPath, final Path binMappingsPath,
+                                                  final Path transactionsPath, final Path eventsPath,
+                                                  final TransactionEngine engine, final UserRegistry users,
+                                                  final TransactionIdSet transactionIds,
+                                                  final BalanceJournal balanceJournal,
+                                                  final PipelineMetrics metrics, final boolean backgroundWriter,
+                                                  final Path checkpointDirectory, final long intervalSeconds)
+            throws IOException {
+        PipelineMetrics.Recorder recorder = metrics.newRecorder();
+        try (final Checkpoint checkpoint = Checkpoint.open(checkpointDirectory, usersPath, binMappingsPath,
+                transactionsPath, eventsPath, users, transactionIds, balanceJournal, engine);
+             final CsvWriter writer = checkpoint.isResumed()
+                     ? CsvWriter.openAt(eventsPath, checkpoint.getEventsPosition(), backgroundWriter)
+                     : CsvWriter.open(eventsPath, backgroundWriter)) {
+            if (checkpoint.isResumed()) {
+                System.out.println("Resuming from checkpoint at offset " + checkpoint.getInputOffset());
+            } else {
+                writer.append(EVENTS_HEADER);
             }
+            long interval = TimeUnit.SECONDS.toNanos(intervalSeconds);
+            long[] nextCheckpoint = {System.nanoTime() + interval};
+            CsvReader.read(transactionsPath, checkpoint.getInputOffset(), 6,
+                    transactionMapper(engine.getDictionaries(), recorder),
+                    transaction -> appendEvent(writer, engine.process(transaction), recorder),
+                    offset -> {
+                        if (System.nanoTime() >= nextCheckpoint[0]) {
+                            checkpoint.save(offset, writer.sync());
+                            nextCheckpoint[0] = System.nanoTime() + interval;
+                        }
+                    });
         }
-        return false;
     }
 
-    private static final int IBAN_MIN_SIZE = 15;
-    private static final int IBAN_MAX_SIZE = 34;
-    private static final long IBAN_MAX = 999999999;
-    private static final long IBAN_MODULUS = 97;
-
-    private static boolean isValidIBAN(String accountNumber) {
-        String trimmed = accountNumber.trim();
-
-        if (trimmed.length() < IBAN_MIN_SIZE || trimmed.length() > IBAN_MAX_SIZE) {
-            return false;
-        }
-
-        String reformat = trimmed.substring(4) + trimmed.substring(0, 4);
-        long total = 0;
-
-        for (int i = 0; i < reformat.length(); i++) {
-            char c = reformat.charAt(i);
-
-            int charValue = Character.isDigit(c) ? Character.getNumericValue(c) : (c - 'A' + 10);
-
-            if (charValue < 0 || charValue > 35) {
-                return false;
-            }
-
-            total = (charValue > 9 ? total * 100 : total * 10) + charValue;
-
-            if (total > IBAN_MAX) {
-                total = (total % IBAN_MODULUS);
+    // Same as streamTransactions, but validation is spread over shards partitioned by userId
+    static void streamTransactionsInParallel(final Path transactionsPath, final Path eventsPath,
+                                             final UserRegistry users, final BinRangeIndex binIndex,
+                                             final Path spillDirectory,
+                                             final BalanceJournal balanceJournal, final int shards,
+                                             final PipelineMetrics metrics, final boolean backgroundWriter)
+            throws IOException {
+        PipelineMetrics.Recorder readRecorder = metrics.newRecorder();
+        PipelineMetrics.Recorder writeRecorder = metrics.newRecorder();
+        try (final CsvWriter writer = CsvWriter.open(eventsPath, backgroundWriter)) {
+            writer.append(EVENTS_HEADER);
+            try (ShardedTransactionEngine engine = new ShardedTransactionEngine(users, binIndex, spillDirectory,
+                    shards, metrics, event -> {
+                        writeRecorder.startSample();
+                        appendEvent(writer, event, writeRecorder);
+                    })) {
+                if (balanceJournal != null) {
+                    engine.onApproval(balanceJournal::record);
+                }
+                CsvReader.read(transactionsPath, 6, transactionMapper(users.getDictionaries(), readRecorder),
+                        engine::submit);
             }
         }
-        return (total % IBAN_MODULUS) == 1;
     }
 
-
-    private static User findUserById(List<User> users, String userId) {
-        for (User user : users) {
-            if (user.getUserId().equals(userId)) {
-                return user;
+    // Long-running mode: ingests feeds from the watched directory and/or the local port until the JVM is asked to
+    // stop (e.g. Ctrl+C), then finishes what was queued and returns so that the balances get written
+    static void serve(final Path eventsPath, final TransactionEngine engine, final PipelineMetrics metrics,
+                      final Path watchDirectory, final int listenPort, final boolean backgroundWriter)
+            throws IOException {
+        Thread mainThread = Thread.currentThread();
+        CountDownLatch stop = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stop.countDown();
+            try {
+                mainThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+
+        try (final CsvWriter writer = CsvWriter.open(eventsPath, backgroundWriter)) {
+            writer.append(EVENTS_HEADER);
+            try (IngestionService service = new IngestionService(engine, writer, metrics)) {
+                if (watchDirectory != null) {
+                    service.watch(watchDirectory);
+                    System.out.println("Watching " + watchDirectory + " for transaction files");
+                }
+                if (listenPort >= 0) {
+                    System.out.println("Listening for transaction feeds on port " + service.listen(listenPort));
+                }
+                stop.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while serving transaction feeds", e);
             }
         }
-        return null;
     }
 
-    private static void writeBalances(final List<User> users) throws IOException {
-        try (final FileWriter writer = new FileWriter(TransactionProcessor.BALANCES_CSV_PATH.toFile(), false)) {
-            writer.append("user_id,balance\n");
+    static void writeBalances(final Path path, final UserRegistry users) throws IOException {
+        try (final CsvWriter writer = CsvWriter.open(path)) {
+            writer.append(BALANCES_HEADER);
             for (final var user : users) {
-                writer.append(user.getUserId()).append(",")
-                        .append(String.valueOf(user.getBalance())).append("\n");
+                appendBalance(writer, user);
             }
         }
     }
 
-    private static void writeEvents(final List<Event> events) throws IOException {
-        try (final FileWriter writer = new FileWriter(TransactionProcessor.EVENTS_CSV_PATH.toFile(), false)) {
-            writer.append("transaction_id,status,message\n");
+    static void appendBalance(final CsvWriter writer, final User user) throws IOException {
+        writer.append(user.getUserId()).append(',');
+        Money.appendTo(writer, user.getBalance(), user.getBalanceScale());
+        writer.append('\n');
+    }
+
+    static void writeEvents(final Path path, final List<Event> events) throws IOException {
+        writeEvents(path, events, PipelineMetrics.disabled(), false);
+    }
+
+    static void writeEvents(final Path path, final List<Event> events, final PipelineMetrics metrics,
+                            final boolean backgroundWriter) throws IOException {
+        PipelineMetrics.Recorder recorder = metrics.newRecorder();
+        try (final CsvWriter writer = CsvWriter.open(path, backgroundWriter)) {
+            writer.append(EVENTS_HEADER);
             for (final var event : events) {
-                writer.append(event.transactionId).append(",").append(event.status)
-                        .append(",").append(event.message).append("\n");
+                recorder.startSample();
+                appendEvent(writer, event, recorder);
             }
         }
     }
+
+    static void appendEvent(final CsvWriter writer, final Event event,
+                                     final PipelineMetrics.Recorder recorder) throws IOException {
+        long startedAt = recorder.now();
+        writer.append(event.transactionId).append(',').append(event.status)
+                .append(',').append(event.message).append('\n');
+        recorder.recordStage(PipelineMetrics.Stage.WRITE, startedAt);
+    }
 }
 
 @Data
 class User {
     private String userId;
     private String username;
-    private BigDecimal balance;
-    private String country;
+    // Money amounts are in minor units, see Money
+    private long balance;
+    private int balanceScale;
+    // Country dictionary id
+    private int country;
     private int frozen;
-    private double depositMin;
-    private double depositMax;
-    private double withdrawMin;
-    private double withdrawMax;
+    private long depositMin;
+    private long depositMax;
+    private long withdrawMin;
+    private long withdrawMax;
 
-    public User(String userId, String username, BigDecimal balance, String country, int frozen,
-                double depositMin, double depositMax, double withdrawMin, double withdrawMax) {
+    public User(String userId, String username, long balance, int balanceScale, int country, int frozen,
+                long depositMin, long depositMax, long withdrawMin, long withdrawMax) {
         this.userId = userId;
         this.username = username;
         this.balance = balance;
+        this.balanceScale = balanceScale;
         this.country = country;
         this.frozen = frozen;
         this.depositMin = depositMin;
@@ -489,20 +471,27 @@ class User {
 @Data
 class Transaction {
     private String transactionId;
-    private String userId;
-    private String type;
-    private BigDecimal amount;
-    private String method;
-    private String accountNumber;
-
-    public Transaction(String transactionId, String userId, String type,
-                       BigDecimal amount, String method, String accountNumber) {
+    // Ids in the user ID, code, code and account dictionaries; StringDictionary.NOT_FOUND for an unknown user or
+    // an account no approved transaction has claimed yet
+    private int userId;
+    private int type;
+    private long amount;
+    private int amountScale;
+    private int method;
+    private int accountNumber;
+    // The account number's text while it has no id, null once it has one
+    private String newAccountNumber;
+
+    public Transaction(String transactionId, int userId, int type,
+                       long amount, int amountScale, int method, int accountNumber, String newAccountNumber) {
         this.transactionId = transactionId;
         this.userId = userId;
         this.type = type;
         this.amount = amount;
+        this.amountScale = amountScale;
         this.method = method;
         this.accountNumber = accountNumber;
+        this.newAccountNumber = newAccountNumber;
     }
 }
 
@@ -511,10 +500,11 @@ class BinMapping {
     private String name;
     private long rangeFrom;
     private long rangeTo;
-    private String type;
-    private String country;
+    // Ids in the code and country dictionaries
+    private int type;
+    private int country;
 
-    public BinMapping(String name, long rangeFrom, long rangeTo, String type, String country) {
+    public BinMapping(String name, long rangeFrom, long rangeTo, int type, int country) {
         this.name = name;
         this.rangeFrom = rangeFrom;
         this.rangeTo = rangeTo;
@@ -0,0 +1,37 @@
+package org.example;
+
+/**
+ * One check of a {@link RuleChain}. The {@link ValidationRule} it implements gives its decline message and with
+ * that its priority.
+ */
+final class TransactionRule {
+
+    interface Check {
+        boolean rejects(RuleContext context);
+    }
+
+    private final ValidationRule rule;
+    private final Check check;
+
+    private TransactionRule(ValidationRule rule, Check check) {
+        this.rule = rule;
+        this.check = check;
+    }
+
+    static TransactionRule of(ValidationRule rule, Check check) {
+        return new TransactionRule(rule, check);
+    }
+
+    ValidationRule getRule() {
+        return rule;
+    }
+
+    boolean rejects(RuleContext context) {
+        return check.rejects(context);
+    }
+
+    @Override
+    public String toString() {
+        return rule.toString();
+    }
+}
@@ -0,0 +1,107 @@
+package org.example;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Users keyed by userId with O(1) lookup.
+ * <p>
+ * Users are kept in one array in file order (so balances are written in the same order they were read).
+ * User IDs are interned into the run's {@link Dictionaries#getUserIds()}, and an {@code int} array indexed by id
+ * points into the user array, so finding a transaction's user is two array reads with no hashing or string
+ * comparison. When a userId appears more than once, lookups return the first one, like the old linear scan did.
+ */
+final class UserRegistry implements Iterable<User> {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final int EMPTY = -1;
+
+    private final Dictionaries dictionaries;
+    private User[] users;
+    // Index into users by user ID dictionary id, EMPTY for ids of other registries or unknown users
+    private int[] indexById = new int[0];
+    private int size;
+
+    UserRegistry(Dictionaries dictionaries) {
+        this(dictionaries, DEFAULT_CAPACITY);
+    }
+
+    UserRegistry(Dictionaries dictionaries, int expectedSize) {
+        this.dictionaries = dictionaries;
+        users = new User[Math.max(expectedSize, 16)];
+    }
+
+    /**
+     * The dictionaries of the run the users were read for, which its transactions have to be read into.
+     */
+    Dictionaries getDictionaries() {
+        return dictionaries;
+    }
+
+    void add(User user) {
+        if (size == users.length) {
+            users = Arrays.copyOf(users, size * 2);
+        }
+        users[size] = user;
+        int id = dictionaries.getUserIds().intern(user.getUserId());
+        if (id >= indexById.length) {
+            int length = indexById.length;
+            indexById = Arrays.copyOf(indexById, Math.max(id + 1, Math.max(length * 2, 16)));
+            Arrays.fill(indexById, length, indexById.length, EMPTY);
+        }
+        if (indexById[id] == EMPTY) {
+            indexById[id] = size;
+        }
+        size++;
+    }
+
+    /**
+     * The user with the given user ID dictionary id, or null.
+     */
+    User find(int userId) {
+        if (userId < 0 || userId >= indexById.length || indexById[userId] == EMPTY) {
+            return null;
+        }
+        return users[indexById[userId]];
+    }
+
+    User find(String userId) {
+        return userId == null ? null : find(dictionaries.getUserIds().find(userId));
+    }
+
+    /**
+     * Position in file order of the user {@link #find(int)} returns, or -1.
+     */
+    int indexOf(int userId) {
+        return userId < 0 || userId >= indexById.length ? EMPTY : indexById[userId];
+    }
+
+    User get(int index) {
+        return users[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<User> iterator() {
+        return new Iterator<>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public User next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                return users[next++];
+            }
+        };
+    }
+}
@@ -0,0 +1,27 @@
+package org.example;
+
+/**
+ * The checks a transaction goes through, in the order the spec ranks their decline messages.
+ */
+enum ValidationRule {
+    USER_NOT_FOUND("User not found"),
+    TRANSACTION_ID_NOT_UNIQUE("Transaction ID is not unique"),
+    USER_FROZEN("User is frozen"),
+    INVALID_PAYMENT_METHOD("Invalid payment method"),
+    COUNTRY_MISMATCH("Country mismatch"),
+    INVALID_AMOUNT("Invalid amount"),
+    INSUFFICIENT_BALANCE("Insufficient balance"),
+    WITHDRAWAL_NOT_ALLOWED("Withdrawal not allowed"),
+    INVALID_TRANSACTION_TYPE("Invalid transaction type"),
+    PAYMENT_ACCOUNT_IN_USE("Payment account already used by another user");
+
+    private final String message;
+
+    ValidationRule(String message) {
+        this.message = message;
+    }
+
+    String getMessage() {
+        return message;
+    }
+}
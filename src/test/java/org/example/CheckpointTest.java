@@ -0,0 +1,117 @@
+package org.example;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CheckpointTest {
+
+    private static final String USERS = "user_id,username,balance,country,frozen,deposit_min,deposit_max,"
+            + "withdraw_min,withdraw_max\n"
+            + "u1,anna,100.00,EE,0,10.00,1000.00,5.00,800.00\n"
+            + "u2,mark,50.50,EE,0,10.00,1000.00,5.00,800.00\n"
+            + "u3,liga,10.00,LV,0,10.00,1000.00,5.00,800.00\n";
+    private static final String BINS = "name,range_from,range_to,type,country\n"
+            + "Bank,4000000000,4000999999,DC,EE\n";
+    private static final String TRANSACTIONS = "transaction_id,user_id,type,amount,method,account_number\n"
+            + "t1,u1,DEPOSIT,20.00,CARD,4000000000000001\n"
+            + "t2,u2,DEPOSIT,30.25,CARD,4000000000000002\n"
+            + "t3,u1,WITHDRAWAL,15.00,CARD,4000000000000001\n"
+            + "t4,u2,DEPOSIT,12.00,CARD,4000000000000001\n"
+            + "t5,u3,DEPOSIT,20.00,CARD,4000000000000003\n"
+            + "t2,u2,DEPOSIT,30.25,CARD,4000000000000002\n"
+            + "t6,u1,DEPOSIT,99.99,CARD,4000000000000001\n"
+            + "t7,u2,WITHDRAWAL,40.00,CARD,4000000000000002\n"
+            + "t8,u1,WITHDRAWAL,5000.00,CARD,4000000000000001\n"
+            + "t9,u2,DEPOSIT,10.00,CARD,4000000000000002\n";
+
+    @TempDir
+    Path directory;
+    private Path input;
+    private Path checkpoint;
+
+    @BeforeEach
+    void writeInput() throws IOException {
+        input = Files.createDirectories(directory.resolve("input"));
+        checkpoint = directory.resolve("checkpoint");
+        Files.writeString(input.resolve("users.csv"), USERS);
+        Files.writeString(input.resolve("bins.csv"), BINS);
+        Files.writeString(input.resolve("transactions.csv"), TRANSACTIONS);
+    }
+
+    @Test
+    void resumedRunWritesTheSameEventsAndBalances() throws IOException {
+        Path expected = Files.createDirectories(directory.resolve("expected"));
+        run(expected, Integer.MAX_VALUE);
+        Checkpoint.delete(checkpoint);
+
+        Path actual = Files.createDirectories(directory.resolve("actual"));
+        assertThrows(Crash.class, () -> run(actual, 3));
+        run(actual, Integer.MAX_VALUE);
+
+        assertEquals(Files.readString(expected.resolve("events.csv")), Files.readString(actual.resolve("events.csv")));
+        assertEquals(Files.readString(expected.resolve("balances.csv")),
+                Files.readString(actual.resolve("balances.csv")));
+    }
+
+    @Test
+    void checkpointIsNotResumedAfterTheReferenceFilesChange() throws IOException {
+        Path output = Files.createDirectories(directory.resolve("output"));
+        assertThrows(Crash.class, () -> run(output, 3));
+        assertTrue(isResumed(output));
+
+        Files.writeString(input.resolve("bins.csv"), BINS + "Other,4001000000,4001999999,CC,LV\n");
+        assertFalse(isResumed(output));
+
+        Files.writeString(input.resolve("bins.csv"), BINS);
+        assertThrows(Crash.class, () -> run(output, 3));
+        Files.writeString(input.resolve("users.csv"), USERS + "u4,eva,0.00,EE,0,10.00,1000.00,5.00,800.00\n");
+        assertFalse(isResumed(output));
+    }
+
+    // Streams the input with a checkpoint after every line, failing like a killed process once the engine has
+    // approved crashAfter transactions
+    private void run(Path output, int crashAfter) throws IOException {
+        Dictionaries dictionaries = new Dictionaries();
+        UserRegistry users = TransactionProcessor.readUsers(input.resolve("users.csv"), dictionaries);
+        BinRangeIndex binIndex = TransactionProcessor.readBinMappings(input.resolve("bins.csv"), dictionaries);
+        TransactionIdSet transactionIds = new TransactionIdSet();
+        TransactionEngine engine = TransactionProcessor.newEngine(users, binIndex, transactionIds,
+                PipelineMetrics.disabled(), null);
+        int[] approvals = {0};
+        engine.onApproval(transaction -> {
+            if (++approvals[0] > crashAfter) {
+                throw new Crash();
+            }
+        });
+        TransactionProcessor.streamTransactionsWithCheckpoints(input.resolve("users.csv"), input.resolve("bins.csv"),
+                input.resolve("transactions.csv"), output.resolve("events.csv"), engine, users, transactionIds, null,
+                PipelineMetrics.disabled(), false, checkpoint, 0);
+        TransactionProcessor.writeBalances(output.resolve("balances.csv"), users);
+    }
+
+    private boolean isResumed(Path output) throws IOException {
+        Dictionaries dictionaries = new Dictionaries();
+        UserRegistry users = TransactionProcessor.readUsers(input.resolve("users.csv"), dictionaries);
+        BinRangeIndex binIndex = TransactionProcessor.readBinMappings(input.resolve("bins.csv"), dictionaries);
+        TransactionIdSet transactionIds = new TransactionIdSet();
+        TransactionEngine engine = new TransactionEngine(users, binIndex, transactionIds, PipelineMetrics.disabled());
+        try (Checkpoint opened = Checkpoint.open(checkpoint, input.resolve("users.csv"), input.resolve("bins.csv"),
+                input.resolve("transactions.csv"), output.resolve("events.csv"), users, transactionIds, null,
+                engine)) {
+            return opened.isResumed();
+        }
+    }
+
+    private static final class Crash extends RuntimeException {
+    }
+}
@@ -0,0 +1,97 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StringDictionaryTest {
+
+    @Test
+    void internReturnsDenseIdsAndTheSameIdForTheSameText() {
+        StringDictionary dictionary = new StringDictionary();
+        assertEquals(0, dictionary.intern("EE"));
+        assertEquals(1, dictionary.intern("LV"));
+        assertEquals(0, dictionary.intern("EE"));
+        assertEquals(0, dictionary.intern(new StringBuilder("E").append('E')));
+        assertEquals(2, dictionary.size());
+    }
+
+    @Test
+    void findDoesNotAddUnknownText() {
+        StringDictionary dictionary = new StringDictionary();
+        dictionary.intern("EE");
+        assertEquals(StringDictionary.NOT_FOUND, dictionary.find("LV"));
+        assertEquals(1, dictionary.size());
+        assertEquals(0, dictionary.find("EE"));
+    }
+
+    @Test
+    void emptyFirstValueGetsAnId() {
+        StringDictionary dictionary = new StringDictionary();
+        assertEquals(0, dictionary.intern(""));
+        assertEquals("", dictionary.toString(0));
+        assertEquals(0, dictionary.length(0));
+        assertEquals(1, dictionary.intern("x"));
+    }
+
+    // Enough values to fill several pages and rehash the table a few times
+    @Test
+    void valuesSurvivePageRolloverAndRehashing() {
+        StringDictionary dictionary = new StringDictionary();
+        int count = 300_000;
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, dictionary.intern("account-" + i));
+        }
+        assertEquals(count, dictionary.size());
+        for (int i = 0; i < count; i++) {
+            String text = "account-" + i;
+            assertEquals(text, dictionary.toString(i));
+            assertEquals(i, dictionary.find(text));
+            assertEquals(StringDictionary.hash(text), dictionary.hash(i));
+        }
+    }
+
+    @Test
+    void bytesAndCharsOfNonAsciiTextInternToTheSameId() {
+        StringDictionary dictionary = new StringDictionary();
+        String text = "Šiaulių bankas";
+        byte[] utf8 = ("x," + text + ",y").getBytes(StandardCharsets.UTF_8);
+        int id = dictionary.intern(ByteBuffer.wrap(utf8), 2, utf8.length - 2);
+        assertEquals(id, dictionary.intern(text));
+        assertEquals(id, dictionary.find(text));
+        assertEquals(text, dictionary.toString(id));
+        assertEquals(StringDictionary.hash(text), dictionary.hash(id));
+        assertEquals(1, dictionary.size());
+    }
+
+    @Test
+    void viewHasOneCharPerUtf8Byte() {
+        StringDictionary dictionary = new StringDictionary();
+        int ascii = dictionary.intern("EE12");
+        int other = dictionary.intern("Ä1");
+        StringDictionary.View view = dictionary.newView();
+        assertEquals("EE12", view.reset(ascii).toString());
+        assertEquals("E1", view.subSequence(1, 3).toString());
+        view.reset(other);
+        assertEquals(3, view.length());
+        assertTrue(view.charAt(0) >= 0x80);
+        assertTrue(view.charAt(1) >= 0x80);
+        assertEquals('1', view.charAt(2));
+    }
+
+    @Test
+    void regionMatchesIgnoresAsciiCaseOnly() {
+        StringDictionary dictionary = new StringDictionary();
+        int id = dictionary.intern("ee");
+        assertTrue(dictionary.regionMatchesIgnoreCase(id, "EE1234", 0));
+        assertTrue(dictionary.regionMatchesIgnoreCase(id, "xEe", 1));
+        assertFalse(dictionary.regionMatchesIgnoreCase(id, "xE", 1));
+        assertFalse(dictionary.regionMatchesIgnoreCase(id, "LV", 0));
+        assertFalse(dictionary.regionMatchesIgnoreCase(StringDictionary.NOT_FOUND, "EE", 0));
+    }
+}
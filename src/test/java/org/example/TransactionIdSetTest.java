@@ -0,0 +1,82 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TransactionIdSetTest {
+
+    // More IDs than the first log page and the initial table hold
+    private static final int COUNT = 300_000;
+
+    @TempDir
+    Path spillDirectory;
+
+    @Test
+    void detectsDuplicates() {
+        TransactionIdSet ids = new TransactionIdSet();
+        assertTrue(ids.add("t1"));
+        assertTrue(ids.add("t2"));
+        assertFalse(ids.add("t1"));
+        assertTrue(ids.add("ť1"));
+        assertFalse(ids.add("ť1"));
+        assertEquals(3, ids.size());
+    }
+
+    @Test
+    void spilledSetGrowsAndLeavesNoFilesBehind() throws IOException {
+        TransactionIdSet ids = new TransactionIdSet(spillDirectory);
+        for (int i = 0; i < COUNT; i++) {
+            assertTrue(ids.add("transaction-" + i));
+        }
+        for (int i = 0; i < COUNT; i++) {
+            assertFalse(ids.add("transaction-" + i));
+        }
+        assertTrue(ids.add("transaction-" + COUNT));
+        assertEquals(COUNT + 1, ids.size());
+        try (Stream<Path> files = Files.list(spillDirectory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void logWrittenInPartsRestoresTheSameIds() throws IOException {
+        TransactionIdSet ids = new TransactionIdSet(spillDirectory);
+        for (int i = 0; i < COUNT / 2; i++) {
+            ids.add("transaction-" + i);
+        }
+        long middle = ids.logEnd();
+        for (int i = COUNT / 2; i < COUNT; i++) {
+            ids.add("transaction-" + i);
+        }
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        ids.writeLog(0, Channels.newChannel(log));
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        ids.writeLog(middle, Channels.newChannel(tail));
+        ids.writeLog(ids.logEnd(), Channels.newChannel(tail));
+
+        TransactionIdSet restored = new TransactionIdSet();
+        restored.addLogged(ByteBuffer.wrap(log.toByteArray()));
+        assertEquals(COUNT, restored.size());
+        for (int i = 0; i < COUNT; i++) {
+            assertFalse(restored.add("transaction-" + i));
+        }
+
+        TransactionIdSet resumed = new TransactionIdSet();
+        resumed.addLogged(ByteBuffer.wrap(tail.toByteArray()));
+        assertEquals(COUNT - COUNT / 2, resumed.size());
+        assertTrue(resumed.add("transaction-0"));
+        assertFalse(resumed.add("transaction-" + (COUNT - 1)));
+    }
+}